@@ -0,0 +1,120 @@
+package net.delta_phi.bleiremote;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decides when {@code DeviceScanActivity} scans.
+ *
+ * A scan starts with one long window.  If the caller does not stop the scan early, e.g.
+ * because the known bridge showed up, it falls back to short windows with pauses in between
+ * and finishes after {@code MAX_DUTY_WINDOWS} of them.  The platform refuses more than
+ * {@code MAX_STARTS} scan starts per {@code START_LIMIT_PERIOD_MS} from one app and silently
+ * delivers no results to the excess ones, so a window that would exceed the limit is
+ * postponed until a start is available again.
+ *
+ * All methods must be called on the handler's thread.
+ */
+class AdaptiveScanScheduler {
+    private final static String TAG = AdaptiveScanScheduler.class.getSimpleName();
+
+    private static final long INITIAL_WINDOW_MS = 5000;
+    private static final long DUTY_WINDOW_MS = 2000;
+    private static final long DUTY_PAUSE_MS = 8000;
+    private static final int MAX_DUTY_WINDOWS = 6;
+
+    // Scan start throttling applied by the platform.
+    private static final int MAX_STARTS = 5;
+    private static final long START_LIMIT_PERIOD_MS = 30000;
+
+    /**
+     * Starts and stops the actual scan.
+     */
+    interface Scanner {
+        void startScan();
+
+        void stopScan();
+
+        /** The scan schedule ended without being stopped. */
+        void onScanFinished();
+    }
+
+    private final Handler mHandler;
+    private final Scanner mScanner;
+
+    // Times of the recent scan starts, oldest first.
+    private final ArrayDeque<Long> mStartTimes = new ArrayDeque<>();
+    private boolean mScanning;
+    private int mDutyWindows;
+    private long mPendingWindowMillis;
+
+    private final Runnable mStartWindow = new Runnable() {
+        @Override
+        public void run() {
+            startWindow(mPendingWindowMillis);
+        }
+    };
+
+    private final Runnable mEndWindow = new Runnable() {
+        @Override
+        public void run() {
+            mScanning = false;
+            mScanner.stopScan();
+            if (mDutyWindows >= MAX_DUTY_WINDOWS) {
+                mScanner.onScanFinished();
+                return;
+            }
+            mDutyWindows++;
+            mPendingWindowMillis = DUTY_WINDOW_MS;
+            mHandler.postDelayed(mStartWindow, DUTY_PAUSE_MS);
+        }
+    };
+
+    AdaptiveScanScheduler(Handler handler, Scanner scanner) {
+        mHandler = handler;
+        mScanner = scanner;
+    }
+
+    /**
+     * Starts a new schedule with the long window.  A running schedule is restarted.
+     */
+    void start() {
+        stop();
+        mDutyWindows = 0;
+        startWindow(INITIAL_WINDOW_MS);
+    }
+
+    /**
+     * Stops the schedule and the scan, if one is running.
+     */
+    void stop() {
+        mHandler.removeCallbacks(mStartWindow);
+        mHandler.removeCallbacks(mEndWindow);
+        if (mScanning) {
+            mScanning = false;
+            mScanner.stopScan();
+        }
+    }
+
+    private void startWindow(long durationMillis) {
+        final long now = SystemClock.elapsedRealtime();
+        while (!mStartTimes.isEmpty()
+                && now - mStartTimes.peekFirst() >= START_LIMIT_PERIOD_MS) {
+            mStartTimes.pollFirst();
+        }
+        if (mStartTimes.size() >= MAX_STARTS) {
+            final long wait = mStartTimes.peekFirst() + START_LIMIT_PERIOD_MS - now;
+            Log.d(TAG, "Scan start limit reached, postponing window by " + wait + " ms");
+            mPendingWindowMillis = durationMillis;
+            mHandler.postDelayed(mStartWindow, wait);
+            return;
+        }
+        mStartTimes.addLast(now);
+        mScanning = true;
+        mScanner.startScan();
+        mHandler.postDelayed(mEndWindow, durationMillis);
+    }
+}
@@ -0,0 +1,226 @@
+package net.delta_phi.bleiremote;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} on top of the platform's {@code BluetoothGatt}.
+ *
+ * When service discovery completes, the discovered services are copied into the plain types
+ * of {@link GattTransport}, and each copied characteristic and descriptor remembers the
+ * platform object it stands for.  Values are copied out of the platform objects before the
+ * callback is made, since the stack reuses them for the next event.
+ */
+class AndroidGattTransport implements GattTransport {
+
+    /**
+     * Connects through a {@code BluetoothAdapter}.
+     */
+    static class Factory implements GattTransport.Factory {
+        private final Context mContext;
+        private final BluetoothAdapter mBluetoothAdapter;
+
+        Factory(Context context, BluetoothAdapter adapter) {
+            mContext = context;
+            mBluetoothAdapter = adapter;
+        }
+
+        @Override
+        public GattTransport open(String address, boolean autoConnect, Callback callback) {
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            if (device == null) {
+                return null;
+            }
+            final AndroidGattTransport transport = new AndroidGattTransport(callback);
+            transport.mGatt = device.connectGatt(mContext, autoConnect,
+                    transport.mGattCallback);
+            return transport.mGatt != null ? transport : null;
+        }
+    }
+
+    // The services of one discovery, and the platform objects behind them.
+    private static class Attributes {
+        private final List<Service> mServices = new ArrayList<>();
+        private final Map<Characteristic, BluetoothGattCharacteristic> mCharacteristics =
+                new HashMap<>();
+        private final Map<Descriptor, BluetoothGattDescriptor> mDescriptors = new HashMap<>();
+
+        private Attributes() {
+        }
+
+        private Attributes(List<BluetoothGattService> discovered) {
+            for (BluetoothGattService gattService : discovered) {
+                final Service service = new Service(gattService.getUuid());
+                for (BluetoothGattCharacteristic gattCharacteristic
+                        : gattService.getCharacteristics()) {
+                    final Characteristic characteristic = service.addCharacteristic(
+                            gattCharacteristic.getUuid(), gattCharacteristic.getProperties());
+                    mCharacteristics.put(characteristic, gattCharacteristic);
+                    for (BluetoothGattDescriptor gattDescriptor
+                            : gattCharacteristic.getDescriptors()) {
+                        mDescriptors.put(characteristic.addDescriptor(gattDescriptor.getUuid()),
+                                gattDescriptor);
+                    }
+                }
+                mServices.add(service);
+            }
+        }
+    }
+
+    private final Callback mCallback;
+    private volatile BluetoothGatt mGatt;
+    private volatile Attributes mAttributes = new Attributes();
+
+    private AndroidGattTransport(Callback callback) {
+        mCallback = callback;
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            mCallback.onConnectionStateChange(status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mAttributes = new Attributes(gatt.getServices());
+            }
+            mCallback.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mCallback.onMtuChanged(mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mCallback.onCharacteristicRead(characteristic.getUuid(), copyValue(characteristic),
+                    status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mCallback.onCharacteristicWrite(characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mCallback.onDescriptorWrite(descriptor.getUuid(), status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mCallback.onCharacteristicChanged(characteristic.getUuid(),
+                    copyValue(characteristic));
+        }
+    };
+
+    private static byte[] copyValue(BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        return value != null ? value.clone() : null;
+    }
+
+    @Override
+    public boolean connect() {
+        return mGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return mGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public Service getService(UUID uuid) {
+        for (Service service : mAttributes.mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<Service> getServices() {
+        return Collections.unmodifiableList(mAttributes.mServices);
+    }
+
+    @Override
+    public boolean readCharacteristic(Characteristic characteristic) {
+        final BluetoothGattCharacteristic target =
+                mAttributes.mCharacteristics.get(characteristic);
+        return target != null && mGatt.readCharacteristic(target);
+    }
+
+    @Override
+    public boolean writeCharacteristic(Characteristic characteristic, byte[] value,
+                                       int writeType) {
+        final BluetoothGattCharacteristic target =
+                mAttributes.mCharacteristics.get(characteristic);
+        if (target == null) {
+            return false;
+        }
+        target.setValue(value);
+        target.setWriteType(writeType);
+        return mGatt.writeCharacteristic(target);
+    }
+
+    @Override
+    public boolean writeDescriptor(Descriptor descriptor, byte[] value) {
+        final BluetoothGattDescriptor target = mAttributes.mDescriptors.get(descriptor);
+        if (target == null) {
+            return false;
+        }
+        target.setValue(value);
+        return mGatt.writeDescriptor(target);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(Characteristic characteristic,
+                                                 boolean enabled) {
+        final BluetoothGattCharacteristic target =
+                mAttributes.mCharacteristics.get(characteristic);
+        return target != null && mGatt.setCharacteristicNotification(target, enabled);
+    }
+}
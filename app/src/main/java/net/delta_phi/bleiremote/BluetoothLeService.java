@@ -16,146 +16,206 @@
 
 package net.delta_phi.bleiremote;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with the GATT servers hosted on
+ * Bluetooth LE devices.
+ *
+ * The service keeps a pool of {@link BridgeConnection}s keyed by device address, up to
+ * {@code MAX_CONNECTIONS} at once.  When a new device is connected with the pool full, the
+ * least recently used idle connection is closed.  The methods without an address act on the
+ * active device, i.e. the one passed to {@link #connect(String)} last.
+ *
+ * The remote control screen starts the service in addition to binding it, so the connections
+ * outlive the screen: a rotation or a trip to another app does not cost a reconnect.  Once the
+ * screen leaves the foreground, the service shows a notification with a way to release the
+ * connections, and releases them by itself after {@code LINGER_TIMEOUT_MS}.
+ *
+ * All GATT I/O runs on the service's GATT thread.  The methods below only hand their work
+ * over to it, so they may be called from the main thread without waiting for the Bluetooth
+ * stack, and completion callbacks such as {@code onComplete} run on the GATT thread.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+    private GattTransport.Factory mTransportFactory;
+
+    // Most stacks handle up to seven links; leave room for other apps.
+    private static final int MAX_CONNECTIONS = 4;
+
+    // Open connections in access order, least recently used first.  Guarded by itself.
+    private final LinkedHashMap<String, BridgeConnection> mConnections =
+            new LinkedHashMap<>(MAX_CONNECTIONS * 2, 0.75f, true);
+    private volatile String mActiveAddress;
+    private boolean mBackgroundReconnectEnabled;
+
+    // The GATT thread, shared by all connections.
+    private ScheduledExecutorService mScheduler;
+    private GattAttributeCache mAttributeCache;
+
+    // Command latency metrics of all connections.  Off unless enabled on the metrics screen.
+    private static final String PREF_METRICS_ENABLED = "metrics_enabled";
+    private final CommandMetrics mMetrics = new CommandMetrics();
+
+    // The connection priority follows the remote control screen: high while it is in the
+    // foreground and in use, balanced once it sat idle for a while, low power while it is in
+    // the background.
+    private static final long IDLE_PRIORITY_TIMEOUT_MS = 10000;
+    private volatile boolean mForeground;
+    private volatile boolean mIdle = true;
+    private ScheduledFuture<?> mIdleTimeout;
+    private final Runnable mEnterIdle = new Runnable() {
+        @Override
+        public void run() {
+            mIdle = true;
+            updateConnectionPriority();
+        }
+    };
 
-    public final static UUID UUID_HEART_RATE_MEASUREMENT =
-            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+    // While the remote control screen is away, the connections are kept open for this long.
+    private static final long LINGER_TIMEOUT_MS = 5 * 60 * 1000;
+    // Keeps the notification from flashing up while the screen is recreated on rotation.
+    private static final long NOTIFICATION_DELAY_MS = 1000;
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Start command that closes all connections and stops the service. */
+    static final String ACTION_RELEASE = "net.delta_phi.bleiremote.ACTION_RELEASE";
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    // Lifecycle state, only used on the main thread.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mStarted;
+    private final Runnable mShowNotification = new Runnable() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+        public void run() {
+            synchronized (mConnections) {
+                if (mConnections.isEmpty()) {
+                    return;
+                }
             }
+            startForeground(NOTIFICATION_ID, buildNotification());
         }
-
+    };
+    private final Runnable mRelease = new Runnable() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void run() {
+            Log.i(TAG, "Remote control unused for " + LINGER_TIMEOUT_MS + " ms, releasing");
+            release();
         }
+    };
+
+    // Delivers connection and data events to the listeners registered on the binder.
+    private final GattEventBus mEventBus = new GattEventBus();
+
+    public final static UUID UUID_HEART_RATE_MEASUREMENT =
+            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+    public final static UUID UUID_REMOTE_CONTROL_COMMAND =
+            RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND;
 
+    // Routes the log messages of the connection classes, which do not depend on the
+    // framework, to the platform log.
+    private static final GattLog.Sink LOG_SINK = new GattLog.Sink() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public boolean isLoggable(String tag, int level) {
+            return Log.isLoggable(tag, level);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void println(int level, String tag, String message) {
+            Log.println(level, tag, message);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
+        }
+
+        /**
+         * Registers a listener for connection and data events.
+         *
+         * @param executor The executor the listener's callbacks run on.
+         */
+        void addGattEventListener(GattEventListener listener, Executor executor) {
+            mEventBus.register(listener, executor);
+        }
+
+        void removeGattEventListener(GattEventListener listener) {
+            mEventBus.unregister(listener);
+        }
+
+        /**
+         * Subscribes a listener to the raw values read from or notified by one characteristic.
+         *
+         * @param executor The executor the listener's callbacks run on.
+         */
+        void addCharacteristicValueListener(UUID characteristic,
+                                            CharacteristicValueListener listener,
+                                            Executor executor) {
+            mEventBus.subscribe(characteristic, listener, executor);
+        }
+
+        void removeCharacteristicValueListener(CharacteristicValueListener listener) {
+            mEventBus.unsubscribe(listener);
+        }
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        GattLog.setSink(LOG_SINK);
+        mScheduler = BridgeConnection.newGattThread("GattThread");
+        mAttributeCache = new PreferencesAttributeCache(this);
+        mMetrics.setEnabled(getSharedPreferences(DeviceControlActivity.PREFS_NAME, MODE_PRIVATE)
+                .getBoolean(PREF_METRICS_ENABLED, false));
+    }
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_RELEASE.equals(intent.getAction())) {
+            release();
         } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-            }
+            mStarted = true;
+            updateLifecycle();
         }
-        sendBroadcast(intent);
+        // Without the screen that started it, there is nothing to restore after a restart.
+        return START_NOT_STICKY;
     }
 
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
-        }
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mShowNotification);
+        mHandler.removeCallbacks(mRelease);
+        close();
+        // Lets the GATT thread close the connections before it ends.
+        mScheduler.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -165,13 +225,61 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // The connections are not closed here.  If the service was started, they are kept
+        // until the linger timeout or an explicit release; otherwise the service is destroyed
+        // now and onDestroy() closes them.
         return super.onUnbind(intent);
     }
 
+    /**
+     * Closes all connections and stops the service.  A screen still bound to the service
+     * keeps it alive, but has to connect again.  Must be called on the main thread.
+     */
+    public void release() {
+        mHandler.removeCallbacks(mShowNotification);
+        mHandler.removeCallbacks(mRelease);
+        mStarted = false;
+        close();
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // Drops the notification while the remote control screen is in the foreground; otherwise
+    // shows it, arms the linger timeout and lets lost links reconnect in the background.  Must
+    // be called on the main thread.
+    private void updateLifecycle() {
+        mHandler.removeCallbacks(mShowNotification);
+        mHandler.removeCallbacks(mRelease);
+        setBackgroundReconnectEnabled(!mForeground && mStarted);
+        if (mForeground) {
+            stopForeground(true);
+        } else if (mStarted) {
+            mHandler.postDelayed(mShowNotification, NOTIFICATION_DELAY_MS);
+            mHandler.postDelayed(mRelease, LINGER_TIMEOUT_MS);
+        }
+    }
+
+    private Notification buildNotification() {
+        final Intent launch = new Intent(this, DeviceScanActivity.class)
+                .setAction(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final Intent release = new Intent(this, BluetoothLeService.class)
+                .setAction(ACTION_RELEASE);
+        return new Notification.Builder(this)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.notification_connected_title))
+                .setContentText(getString(R.string.notification_connected_text))
+                .setContentIntent(PendingIntent.getActivity(this, 0, launch, 0))
+                .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                        getString(R.string.notification_release),
+                        PendingIntent.getService(this, 0, release, 0))
+                .setPriority(Notification.PRIORITY_LOW)
+                .setCategory(Notification.CATEGORY_SERVICE)
+                .setShowWhen(false)
+                .build();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -195,17 +303,20 @@ public class BluetoothLeService extends Service {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
             return false;
         }
+        mTransportFactory = new AndroidGattTransport.Factory(this, mBluetoothAdapter);
 
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device and makes it the active
+     * device.  Connections to other devices stay open.
      *
      * @param address The device address of the destination device.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
+     * @return Return true if the connection is initiated, false if Bluetooth is not
+     *         initialized or all connections are busy.  The connection result is reported
+     *         asynchronously through the
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      *         callback.
      */
@@ -215,121 +326,428 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        final BridgeConnection connection;
+        synchronized (mConnections) {
+            BridgeConnection existing = mConnections.get(address);
+            if (existing == null) {
+                if (mConnections.size() >= MAX_CONNECTIONS && !evictIdleConnection()) {
+                    Log.w(TAG, "All " + MAX_CONNECTIONS + " connections busy.  Unable to connect.");
+                    return false;
+                }
+                existing = new BridgeConnection(address, mTransportFactory, mScheduler,
+                        mEventBus, mAttributeCache, mMetrics, RemoteCommandTable.COMMAND_CLASSES);
+                existing.setBackgroundReconnectEnabled(mBackgroundReconnectEnabled);
+                mConnections.put(address, existing);
+            }
+            connection = existing;
+        }
+        mActiveAddress = address;
+        connection.setConnectionPriority(getConnectionPriority());
+        connection.connect();
+        return true;
+    }
+
+    // Closes the least recently used connection without pending operations.  Must be called
+    // with mConnections locked.
+    private boolean evictIdleConnection() {
+        final Iterator<BridgeConnection> connections = mConnections.values().iterator();
+        while (connections.hasNext()) {
+            final BridgeConnection connection = connections.next();
+            if (connection.isIdle()) {
+                Log.i(TAG, "Closing least recently used connection to "
+                        + connection.getAddress());
+                connections.remove();
+                connection.close();
                 return true;
-            } else {
-                return false;
             }
         }
+        return false;
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
+    // Enables reconnecting in the background: once the quick reconnect attempts after a lost
+    // link are used up, a connection request stays pending until the bridge is back in range.
+    // On while the connections linger, so the bridge is ready when the screen comes back.
+    private void setBackgroundReconnectEnabled(boolean enabled) {
+        synchronized (mConnections) {
+            mBackgroundReconnectEnabled = enabled;
+            for (BridgeConnection connection : mConnections.values()) {
+                connection.setBackgroundReconnectEnabled(enabled);
+            }
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
+     * Disconnects the active device or cancels a pending connection to it. The disconnection
+     * result is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * callback.  A connection released this way is not brought back automatically.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final BridgeConnection connection = getActiveConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * After using the BLE devices, the app must call this method to ensure resources are
+     * released properly.  Closes the connections to all devices.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        final List<BridgeConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        for (BridgeConnection connection : connections) {
+            connection.close();
+        }
+        Log.d(TAG, "Closed " + connections.size() + " connections, " + mEventBus);
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Request a read on a given characteristic of the active device. The read is queued behind
+     * any pending GATT operation; the value is reported asynchronously to the
+     * {@link CharacteristicValueListener}s of the characteristic.
      *
-     * @param characteristic The characteristic to read from.
+     * @param characteristic The characteristic to read from, as returned by
+     *                       {@link #getSupportedGattServices()}.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void readCharacteristic(final GattTransport.Characteristic characteristic) {
+        final BridgeConnection connection = getActiveConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        connection.readCharacteristic(characteristic);
     }
 
     /**
-     * Request a write on a given {@code BluetoothGattCharacteristic}. The read result is reported
-     * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * Request a write on a given characteristic of the active device. The write is queued
+     * behind any pending GATT operation.
+     *
+     * Key frames for the remote control command characteristic are sent as writes without
+     * response if the characteristic supports them, so they do not cost a round trip each.
      *
-     * @param characteristic The characteristic to write to (must have its value set).
+     * @param characteristic The characteristic to write to, as returned by
+     *                       {@link #getSupportedGattServices()}.
+     * @param value The value to write.  It is not copied and must not be modified afterwards.
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    public void writeCharacteristic(final GattTransport.Characteristic characteristic,
+                                    final byte[] value) {
+        final BridgeConnection connection = getActiveConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        connection.writeCharacteristic(characteristic, value);
     }
 
+    /**
+     * Sends a key frame to the remote control command characteristic of the active bridge.
+     * The characteristic is taken from the handle resolved at service discovery, so this does
+     * not search the GATT database.
+     *
+     * Frames sent before the characteristic is resolved, e.g. right after launch or while the
+     * link is brought back, are buffered and sent in order as soon as it is.  Buffered frames
+     * that wait too long are dropped, as the user has moved on by then.
+     *
+     * @param frame The frame to send.  It is not copied and must not be modified afterwards.
+     *
+     * @return Return true if the frame was queued, false if there is no connection to the
+     *         bridge or the bridge is known to have no remote control characteristic.
+     */
+    public boolean sendFrame(byte[] frame) {
+        return sendFrame(frame, null);
+    }
+
+    /**
+     * Like {@link #sendFrame(byte[])}, but reports when the frame has left the GATT queue.
+     *
+     * @param onComplete Run once the write has completed, failed or was cancelled.  Only run
+     *                   if the frame was queued.
+     */
+    public boolean sendFrame(byte[] frame, Runnable onComplete) {
+        return sendFrame(mActiveAddress, frame, onComplete);
+    }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Like {@link #sendFrame(byte[], Runnable)}, but sends to the bridge with the given address
+     * instead of the active one.
+     */
+    public boolean sendFrame(String address, byte[] frame, Runnable onComplete) {
+        final BridgeConnection connection = getConnection(address);
+        if (connection == null) {
+            Log.w(TAG, "Not connected to " + address + ", dropping frame");
+            return false;
+        }
+        noteCommandActivity();
+        return connection.sendFrame(frame, onComplete);
+    }
+
+    /**
+     * Sends a key frame to every bridge in the pool.  Each bridge has its own GATT queue, so
+     * the writes go out in parallel.  The time until the last bridge completed the write is
+     * logged together with the latency on each bridge.
+     *
+     * @param onComplete Run once the write to every bridge it was queued for has completed,
+     *                   failed or was cancelled.  Only run if the frame was queued at least
+     *                   once.
+     *
+     * @return Return true if the frame was queued for at least one bridge.
+     */
+    public boolean broadcastFrame(byte[] frame, final Runnable onComplete) {
+        final List<BridgeConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+        }
+        if (connections.isEmpty()) {
+            return false;
+        }
+        noteCommandActivity();
+        final long start = System.nanoTime();
+        // Starts at one so the count cannot reach zero before all frames are queued.
+        final AtomicInteger remaining = new AtomicInteger(1);
+        final Runnable onFrameComplete = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() != 0) {
+                    return;
+                }
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Broadcast to " + connections.size() + " bridges completed in "
+                            + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us, "
+                            + getLatencyStats(connections));
+                }
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+            }
+        };
+        int queued = 0;
+        for (BridgeConnection connection : connections) {
+            remaining.incrementAndGet();
+            if (connection.sendFrame(frame, onFrameComplete)) {
+                queued++;
+            } else {
+                remaining.decrementAndGet();
+            }
+        }
+        if (queued == 0) {
+            return false;
+        }
+        onFrameComplete.run();
+        return true;
+    }
+
+    /**
+     * Sends a macro to the active bridge.  The macro is packed into as few writes as the
+     * current MTU allows; the number of writes and the time until the last one completed are
+     * logged.
+     *
+     * @return Return true if the macro was queued.
+     */
+    public boolean sendMacro(final Macro macro) {
+        final BridgeConnection connection = getActiveConnection();
+        if (connection == null) {
+            return false;
+        }
+        noteCommandActivity();
+        return connection.sendMacro(macro, null);
+    }
+
+    /**
+     * Tells the service whether the remote control screen is in the foreground.  While it is,
+     * the connections run at high priority for low command latency; otherwise they drop to low
+     * power and the linger timeout runs.  Must be called on the main thread.
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+        if (foreground) {
+            noteCommandActivity();
+        }
+        updateConnectionPriority();
+        updateLifecycle();
+    }
+
+    /**
+     * @return The command metrics shared by all connections.
+     */
+    CommandMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Turns the command metrics on or off.  The setting is kept across restarts.
+     */
+    void setMetricsEnabled(boolean enabled) {
+        mMetrics.setEnabled(enabled);
+        getSharedPreferences(DeviceControlActivity.PREFS_NAME, MODE_PRIVATE).edit()
+                .putBoolean(PREF_METRICS_ENABLED, enabled)
+                .apply();
+    }
+
+    /**
+     * Prints the command metrics and the state of every connection.  Available through
+     * {@code adb shell dumpsys activity service net.delta_phi.bleiremote/.BluetoothLeService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dump(writer);
+    }
+
+    /**
+     * Prints the command metrics and the state of every connection, for the metrics screen.
+     */
+    void dump(PrintWriter writer) {
+        mMetrics.dump(writer);
+        final List<BridgeConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+        }
+        writer.println("Connections (active " + mActiveAddress + ")");
+        for (BridgeConnection connection : connections) {
+            writer.println("  " + connection);
+        }
+    }
+
+    /**
+     * @return Return true if the connection to the device is up.
+     */
+    public boolean isConnected(String address) {
+        final BridgeConnection connection = getConnection(address);
+        return connection != null && connection.isConnected();
+    }
+
+    /**
+     * @return The ATT MTU negotiated for the connection to the active device.
+     */
+    public int getMtu() {
+        final BridgeConnection connection = getActiveConnection();
+        return connection != null ? connection.getMtu() : 0;
+    }
+
+    /**
+     * @return The approximate connection interval of the active device.  The platform does
+     *         not report the interval the peer accepted, so this is the middle of the range
+     *         requested for the current connection priority.
+     */
+    public float getConnectionIntervalMillis() {
+        final BridgeConnection connection = getActiveConnection();
+        return connection != null ? connection.getConnectionIntervalMillis() : 0;
+    }
+
+    /**
+     * @return The addresses of all devices in the connection pool, connected or not.
+     */
+    public List<String> getConnectionAddresses() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections.keySet());
+        }
+    }
+
+    /**
+     * @return The GATT latency on every connection, as text for logging.
+     */
+    public String getConnectionStats() {
+        final List<BridgeConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+        }
+        return getLatencyStats(connections);
+    }
+
+    private static String getLatencyStats(List<BridgeConnection> connections) {
+        final StringBuilder stats = new StringBuilder();
+        for (BridgeConnection connection : connections) {
+            if (stats.length() > 0) {
+                stats.append(", ");
+            }
+            stats.append(connection.getAddress())
+                    .append(": last ")
+                    .append(TimeUnit.NANOSECONDS.toMicros(connection.getLastLatencyNanos()))
+                    .append(" us, avg ")
+                    .append(TimeUnit.NANOSECONDS.toMicros(connection.getAverageLatencyNanos()))
+                    .append(" us");
+        }
+        return stats.toString();
+    }
+
+    // Restarts the idle timer; switches back to high priority if the links went idle.
+    private void noteCommandActivity() {
+        synchronized (mEnterIdle) {
+            if (mIdleTimeout != null) {
+                mIdleTimeout.cancel(false);
+            }
+            mIdleTimeout = mScheduler.schedule(mEnterIdle, IDLE_PRIORITY_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (mIdle) {
+            mIdle = false;
+            updateConnectionPriority();
+        }
+    }
+
+    private int getConnectionPriority() {
+        if (!mForeground) {
+            return GattTransport.CONNECTION_PRIORITY_LOW_POWER;
+        } else if (mIdle) {
+            return GattTransport.CONNECTION_PRIORITY_BALANCED;
+        } else {
+            return GattTransport.CONNECTION_PRIORITY_HIGH;
+        }
+    }
+
+    private void updateConnectionPriority() {
+        final int priority = getConnectionPriority();
+        synchronized (mConnections) {
+            for (BridgeConnection connection : mConnections.values()) {
+                connection.setConnectionPriority(priority);
+            }
+        }
+    }
+
+    private BridgeConnection getConnection(String address) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (mConnections) {
+            return mConnections.get(address);
+        }
+    }
+
+    private BridgeConnection getActiveConnection() {
+        return getConnection(mActiveAddress);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic of the active device.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(GattTransport.Characteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final BridgeConnection connection = getActiveConnection();
+        if (mBluetoothAdapter == null || connection == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
-        }
+        connection.setCharacteristicNotification(characteristic, enabled);
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     * Retrieves a list of supported GATT services on the active device. This should be
+     * invoked only after service discovery completes successfully.
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<GattTransport.Service> getSupportedGattServices() {
+        final BridgeConnection connection = getActiveConnection();
+        if (connection == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.getSupportedGattServices();
     }
 }
@@ -17,31 +17,28 @@
 package net.delta_phi.bleiremote;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
 import android.content.ComponentName;
-import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
-import android.widget.Button;
 import android.widget.TextView;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.UUID;
-import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -54,118 +51,151 @@ public class DeviceControlActivity extends Activity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // SystemClock.elapsedRealtime() of the app launch, if the device was opened automatically.
+    // Startup timing is measured from there, otherwise from the creation of this screen.
+    public static final String EXTRAS_LAUNCH_MILLIS = "LAUNCH_MILLIS";
 
-    private static final UUID characteristicUUID = UUID.fromString("9184addc-850c-4057-b0fc-d49a10738a1b");
+    // Remembers the bridge used last, so the app can go straight back to it.
+    static final String PREFS_NAME = "remote_control";
+    static final String PREF_LAST_DEVICE_ADDRESS = "last_device_address";
+    static final String PREF_LAST_DEVICE_NAME = "last_device_name";
 
     //private TextView mConnectionState;
     //private TextView mDataField;
     private String mDeviceName;
     private String mDeviceAddress;
+    private long mLaunchMillis;
+    // Set by the completion of the first command, which runs on the GATT thread.
+    private volatile boolean mFirstCommandLogged;
     //private ExpandableListView mGattServicesList;
 
-    private Collection<Button> buttonCollection = new Vector<Button>(50);
-
-    private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private BluetoothLeService.LocalBinder mBinder;
+    // Also read by the key repeater's thread.
+    private volatile BluetoothLeService mBluetoothLeService;
+    private ScheduledExecutorService mRepeatScheduler;
+    private KeyRepeater mKeyRepeater;
+    private List<Macro> mMacros;
     private boolean mConnected = false;
-    private BluetoothGattCharacteristic mNotifyCharacteristic;
-
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
+    // Whether keys go to every bridge in the service's connection pool.
+    private boolean mSendToAllBridges = false;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            mBinder = (BluetoothLeService.LocalBinder) service;
+            mBinder.addGattEventListener(mGattEventListener, mMainThreadExecutor);
+            mBluetoothLeService = mBinder.getService();
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
+            logStartup("connect issued");
+            syncConnectionState();
+            mBluetoothLeService.setForeground(true);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mBinder = null;
             mBluetoothLeService = null;
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events fired by the Service.  Registered for the lifetime of the
+    // service binding; callbacks run on the main thread.  Events of other bridges in the
+    // service's connection pool are ignored.
+    private final GattEventListener mGattEventListener = new GattEventListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
+        public void onGattConnected(String address) {
+            if (address.equals(mDeviceAddress)) {
+                logStartup("connected");
                 mConnected = true;
                 invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
+            }
+        }
+
+        @Override
+        public void onGattDisconnected(String address) {
+            if (address.equals(mDeviceAddress)) {
                 mConnected = false;
                 invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                //displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
             }
         }
-    };
 
-    private final View.OnClickListener buttonClickListener = new View.OnClickListener() {
         @Override
-        public void onClick(View v) {
-            // Determine the button index
-            Iterator<Button> buttonIterator = buttonCollection.iterator();
-            int i = 0;
-            boolean found = false;
-            for (Button button : buttonCollection) {
-                if (button == v) {
-                    found = true;
-                    break;
-                }
-                ++i;
+        public void onGattServicesDiscovered(String address) {
+            if (address.equals(mDeviceAddress)) {
+                logStartup("services resolved");
             }
-            if (found) {
-
-                BluetoothGattCharacteristic characteristic = null;
-                for (ArrayList<BluetoothGattCharacteristic> serviceList : mGattCharacteristics) {
-                    for (BluetoothGattCharacteristic chara : serviceList) {
-                        if (chara.getUuid().compareTo(characteristicUUID) == 0) {
-                            characteristic = chara;
-                            break;
-                        }
-                    }
-                }
-
-                Byte protocol = 0x2f;
-                Byte[] address = {0x00, 0x00};
-                byte[] command = DeviceControlActivity.getCommandForButton(v);
-                Byte flags = 0x00;
+        }
+    };
 
+    private final Executor mMainThreadExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
 
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream(10);
-                baos.write(protocol);
-                baos.write(address[0]);
-                baos.write(address[1]);
-                baos.write(command[1]);
-                baos.write(command[0]);
-                baos.write(flags);
+    private final View.OnClickListener buttonClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            final byte[] frame = RemoteCommandTable.getFrame(v.getId());
+            // Clicks carry no event time, so the time the click reached the listener stands in.
+            final long eventTime = SystemClock.uptimeMillis();
+            if (frame != null && frameSink.sendFrame(frame, null)) {
+                recordClickToEnqueue(eventTime);
+            }
+        }
+    };
 
-                byte[] bytes = baos.toByteArray();
+    // Sends the frame of a button when it goes down and repeats it while the button is held.
+    // Touches are consumed here, so onClick only sees clicks from keyboards and accessibility
+    // services.
+    private final View.OnTouchListener buttonTouchListener = new View.OnTouchListener() {
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    final byte[] frame = RemoteCommandTable.getFrame(v.getId());
+                    if (frame == null) {
+                        return false;
+                    }
+                    v.setPressed(true);
+                    if (mKeyRepeater.press(frame, frameSink)) {
+                        recordClickToEnqueue(event.getEventTime());
+                    }
+                    return true;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    v.setPressed(false);
+                    mKeyRepeater.release();
+                    return true;
+                default:
+                    return true;
+            }
+        }
+    };
 
-                characteristic.setValue(bytes);
-                mBluetoothLeService.writeCharacteristic(characteristic);
-                //mBluetoothLeService.readCharacteristic(characteristic);
+    private final KeyRepeater.FrameSink frameSink = new KeyRepeater.FrameSink() {
+        @Override
+        public boolean sendFrame(byte[] frame, Runnable onComplete) {
+            final BluetoothLeService service = mBluetoothLeService;
+            if (service == null) {
+                return false;
+            }
+            if (!mFirstCommandLogged) {
+                onComplete = logFirstCommand(onComplete);
             }
+            return mSendToAllBridges
+                    ? service.broadcastFrame(frame, onComplete)
+                    : service.sendFrame(frame, onComplete);
         }
     };
 
@@ -174,14 +204,77 @@ public class DeviceControlActivity extends Activity {
         //mDataField.setText(R.string.no_data);
     //}
 
+    // Wraps onComplete so the completion of the first command after launch is logged.
+    private Runnable logFirstCommand(final Runnable onComplete) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!mFirstCommandLogged) {
+                    mFirstCommandLogged = true;
+                    Log.i(TAG, "Launch to first command: "
+                            + (SystemClock.elapsedRealtime() - mLaunchMillis) + " ms");
+                }
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+            }
+        };
+    }
+
+    // Records the time from an input event to its frame being queued.  The event time is on
+    // the uptimeMillis clock and includes the time the event spent in the input pipeline.
+    // Call only once the frame was accepted.
+    private void recordClickToEnqueue(long eventTimeMillis) {
+        final BluetoothLeService service = mBluetoothLeService;
+        if (service != null) {
+            service.getMetrics().recordClickToEnqueue(TimeUnit.MILLISECONDS.toNanos(
+                    SystemClock.uptimeMillis() - eventTimeMillis));
+        }
+    }
+
+    // Picks up a connection that outlived the previous instance of this screen, or that was
+    // released while the screen was in the background.  No events are sent for either.
+    private void syncConnectionState() {
+        final boolean connected = mBluetoothLeService.isConnected(mDeviceAddress);
+        if (connected != mConnected) {
+            mConnected = connected;
+            invalidateOptionsMenu();
+        }
+    }
+
+    private void logStartup(String milestone) {
+        if (!mFirstCommandLogged) {
+            Log.d(TAG, "Startup: " + milestone + " after "
+                    + (SystemClock.elapsedRealtime() - mLaunchMillis) + " ms");
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_remote_control);
 
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mLaunchMillis = intent.getLongExtra(EXTRAS_LAUNCH_MILLIS, SystemClock.elapsedRealtime());
+
+        // Binds before the layout is inflated, so the service is created and the connection
+        // is started as early as possible.  The link comes up while the buttons are set up.
+        // The service is started in onResume(), so it outlives this screen.
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+
+        setContentView(R.layout.activity_remote_control);
+
+        mRepeatScheduler = Executors.newSingleThreadScheduledExecutor();
+        mKeyRepeater = new KeyRepeater(mRepeatScheduler,
+                getResources().getInteger(R.integer.key_repeat_delay_ms),
+                getResources().getInteger(R.integer.key_repeat_interval_ms));
+
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(PREF_LAST_DEVICE_ADDRESS, mDeviceAddress)
+                .putString(PREF_LAST_DEVICE_NAME, mDeviceName)
+                .apply();
 
         // Sets up UI references.
         //((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
@@ -189,206 +282,48 @@ public class DeviceControlActivity extends Activity {
         //mGattServicesList.setOnChildClickListener(servicesListClickListner);
         //mConnectionState = (TextView) findViewById(R.id.connection_state);
         //mDataField = (TextView) findViewById(R.id.data_value);
-        buttonCollection.add((Button) findViewById(R.id.button_onoff));
-        buttonCollection.add((Button) findViewById(R.id.button_muting));
-        buttonCollection.add((Button) findViewById(R.id.button_vol_down));
-        buttonCollection.add((Button) findViewById(R.id.button_vol_up));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_1));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_2));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_3));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_4));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_5));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_6));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_7));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_8));
-        buttonCollection.add((Button) findViewById(R.id.button_deck_play));
-        buttonCollection.add((Button) findViewById(R.id.button_deck_stop));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_9));
-        buttonCollection.add((Button) findViewById(R.id.button_fm_0));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_play));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_stop));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_skip_rew));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_skip_ff));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_program));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_1));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_2));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_3));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_4));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_5));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_6));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_7));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_8));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_9));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_0));
-        buttonCollection.add((Button) findViewById(R.id.button_cd_plus_ten));
-
-        for (Button button : buttonCollection) {
+        for (int i = 0; i < RemoteCommandTable.size(); ++i) {
+            final View button = findViewById(RemoteCommandTable.viewIdAt(i));
             button.setOnClickListener(buttonClickListener);
+            button.setOnTouchListener(buttonTouchListener);
         }
 
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
-        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
-        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
-    }
-
-    static byte[] getCommandForButton(View v) {
-        byte command[] = {0x00, 0x00};
-        switch (v.getId()) {
-            case R.id.button_onoff:
-                command[0] = (byte) 0x04;
-                command[1] = (byte) 0x09;
-                break;
-            case R.id.button_muting:
-                command[0] = (byte) 0x04;
-                command[1] = (byte) 0xE9;
-                break;
-            case R.id.button_vol_down:
-                command[0] = (byte) 0x04;
-                command[1] = (byte) 0xA9;
-                break;
-            case R.id.button_vol_up:
-                command[0] = (byte) 0x04;
-                command[1] = (byte) 0x89;
-                break;
-            case R.id.button_fm_1:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x09;
-                break;
-            case R.id.button_fm_2:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x29;
-                break;
-            case R.id.button_fm_3:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x49;
-                break;
-            case R.id.button_fm_4:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x69;
-                break;
-            case R.id.button_fm_5:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x89;
-                break;
-            case R.id.button_fm_6:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xA9;
-                break;
-            case R.id.button_fm_7:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xC9;
-                break;
-            case R.id.button_fm_8:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xE9;
-                break;
-            case R.id.button_deck_play:
-                command[0] = (byte) 0x01;
-                command[1] = (byte) 0x49;
-                break;
-            case R.id.button_deck_stop:
-                command[0] = (byte) 0x00;
-                command[1] = (byte) 0x09;
-                break;
-            case R.id.button_fm_9:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0x09;
-                break;
-            case R.id.button_fm_0:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0x29;
-                break;
-            case R.id.button_cd_play:
-                command[0] = (byte) 0x01;
-                command[1] = (byte) 0x4C;
-                break;
-            case R.id.button_cd_stop:
-                command[0] = (byte) 0x00;
-                command[1] = (byte) 0x0C;
-                break;
-            case R.id.button_cd_skip_rew:
-                command[0] = (byte) 0x00;
-                command[1] = (byte) 0x4C;
-                break;
-            case R.id.button_cd_skip_ff:
-                command[0] = (byte) 0x00;
-                command[1] = (byte) 0x6C;
-                break;
-            case R.id.button_cd_program:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0xAC;
-                break;
-            case R.id.button_cd_1:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x0C;
-                break;
-            case R.id.button_cd_2:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x2C;
-                break;
-            case R.id.button_cd_3:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x4C;
-                break;
-            case R.id.button_cd_4:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x6C;
-                break;
-            case R.id.button_cd_5:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0x8C;
-                break;
-            case R.id.button_cd_6:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xAC;
-                break;
-            case R.id.button_cd_7:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xCC;
-                break;
-            case R.id.button_cd_8:
-                command[0] = (byte) 0x02;
-                command[1] = (byte) 0xEC;
-                break;
-            case R.id.button_cd_9:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0x0C;
-                break;
-            case R.id.button_cd_0:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0x2C;
-                break;
-            case R.id.button_cd_plus_ten:
-                command[0] = (byte) 0x03;
-                command[1] = (byte) 0x4C;
-                break;
-            default:
-
-        }
-        return command;
+        logStartup("layout ready");
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        // Started again on every resume, in case the connections were released meanwhile.
+        startService(new Intent(this, BluetoothLeService.class));
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            syncConnectionState();
+            mBluetoothLeService.setForeground(true);
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        mKeyRepeater.release();
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setForeground(false);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mRepeatScheduler.shutdownNow();
+        if (mBinder != null) {
+            mBinder.removeGattEventListener(mGattEventListener);
+            mBinder = null;
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -403,6 +338,7 @@ public class DeviceControlActivity extends Activity {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        menu.findItem(R.id.menu_all_bridges).setChecked(mSendToAllBridges);
         return true;
     }
 
@@ -415,6 +351,16 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_macros:
+                showMacros();
+                return true;
+            case R.id.menu_metrics:
+                startActivity(new Intent(this, MetricsActivity.class));
+                return true;
+            case R.id.menu_all_bridges:
+                mSendToAllBridges = !mSendToAllBridges;
+                item.setChecked(mSendToAllBridges);
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -422,69 +368,24 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-            }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
+    private void showMacros() {
+        if (mMacros == null) {
+            mMacros = MacroLibrary.load(this);
         }
-
-//        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-//                this,
-//                gattServiceData,
-//                android.R.layout.simple_expandable_list_item_2,
-//                new String[] {LIST_NAME, LIST_UUID},
-//                new int[] { android.R.id.text1, android.R.id.text2 },
-//                gattCharacteristicData,
-//                android.R.layout.simple_expandable_list_item_2,
-//                new String[] {LIST_NAME, LIST_UUID},
-//                new int[] { android.R.id.text1, android.R.id.text2 }
-//        );
-        //mGattServicesList.setAdapter(gattServiceAdapter);
-    }
-
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
+        final CharSequence[] names = new CharSequence[mMacros.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = mMacros.get(i).getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_macros)
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mBluetoothLeService != null) {
+                            mBluetoothLeService.sendMacro(mMacros.get(which));
+                        }
+                    }
+                })
+                .show();
     }
 }
@@ -18,6 +18,7 @@ package net.delta_phi.bleiremote;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -28,11 +29,15 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -44,28 +49,46 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends ListActivity {
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
 
-    private UUID[] interestingServiceUUIDS = {UUID.fromString("91848fa3-850c-4057-b0fc-d49a10738a1b")};
+    private UUID[] interestingServiceUUIDS = {UUID.fromString(SampleGattAttributes.REMOTE_CONTROL_SERVICE)};
     private List<ScanFilter> deviceFilters;
 
     private ScanSettings mSettings;
+    private ScanProfile mScanProfile;
+    private boolean mOffloadedBatchingSupported;
+    // Start of the current scan until its first result arrived, 0 otherwise.
+    private long mScanStartMillis;
 
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanAggregator mScanAggregator;
     private BluetoothAdapter mBluetoothAdapter;
     private BluetoothLeScanner mBluetoothLeScanner;
     private boolean mScanning;
     private Handler mHandler;
+    private AdaptiveScanScheduler mScanScheduler;
+
+    // The bridge used last.  On launch, the scan stops as soon as it shows up and its remote
+    // control screen is opened.  Cleared once any device is opened, so the list stays put
+    // when the user comes back to it.  Read on the binder thread by the scan callback.
+    private String mKnownAddress;
+    private volatile boolean mOpenKnownBridge;
+    private final AtomicBoolean mKnownBridgeSeen = new AtomicBoolean();
+    private long mLaunchMillis;
+    // Set when the remote control screen was opened directly on launch.
+    private boolean mSkipNextScan;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+    private static final String PREF_SCAN_PROFILE = "scan_profile";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -74,7 +97,38 @@ public class DeviceScanActivity extends ListActivity {
         if (actionBar != null) {
             actionBar.setTitle(R.string.title_devices);
         }
+        mLaunchMillis = SystemClock.elapsedRealtime();
+        mOpenKnownBridge = savedInstanceState == null;
         mHandler = new Handler();
+        mScanScheduler = new AdaptiveScanScheduler(mHandler, new AdaptiveScanScheduler.Scanner() {
+            @Override
+            public void startScan() {
+                mScanStartMillis = SystemClock.elapsedRealtime();
+                mBluetoothLeScanner.startScan(deviceFilters, mSettings, mLeScanCallback);
+            }
+
+            @Override
+            public void stopScan() {
+                mBluetoothLeScanner.stopScan(mLeScanCallback);
+            }
+
+            @Override
+            public void onScanFinished() {
+                mScanning = false;
+                invalidateOptionsMenu();
+            }
+        });
+        mScanAggregator = new ScanAggregator(mHandler, new ScanAggregator.Listener() {
+            @Override
+            public void onDevicesChanged(List<ScanAggregator.Device> changed) {
+                if (mScanStartMillis != 0) {
+                    Log.d(TAG, "First scan result after "
+                            + (SystemClock.elapsedRealtime() - mScanStartMillis) + " ms");
+                    mScanStartMillis = 0;
+                }
+                mLeDeviceListAdapter.applyChanges(changed);
+            }
+        });
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -110,8 +164,25 @@ public class DeviceScanActivity extends ListActivity {
             deviceFilters.add(filterBuilder.build());
         }
 
-        mSettings = (new ScanSettings.Builder()).build();
-
+        mOffloadedBatchingSupported = mBluetoothAdapter.isOffloadedScanBatchingSupported();
+        setScanProfile(ScanProfile.forIndex(
+                getPreferences(MODE_PRIVATE).getInt(PREF_SCAN_PROFILE, 0)));
+
+        // Goes straight to the remote control of the bridge used last, without scanning.  The
+        // device list stays below it, so Back leads to the other bridges.  If Bluetooth is
+        // off, the launch scan opens the bridge once it is enabled and the bridge is seen.
+        if (savedInstanceState == null && mBluetoothAdapter.isEnabled()) {
+            final SharedPreferences preferences =
+                    getSharedPreferences(DeviceControlActivity.PREFS_NAME, MODE_PRIVATE);
+            final String address =
+                    preferences.getString(DeviceControlActivity.PREF_LAST_DEVICE_ADDRESS, null);
+            if (address != null) {
+                mSkipNextScan = true;
+                openDevice(address,
+                        preferences.getString(DeviceControlActivity.PREF_LAST_DEVICE_NAME, null),
+                        true);
+            }
+        }
     }
 
     @Override
@@ -134,12 +205,16 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                mScanAggregator.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
                 scanLeDevice(false);
                 break;
+            case R.id.menu_scan_profile:
+                showScanProfiles();
+                break;
         }
         return true;
     }
@@ -158,6 +233,12 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        mKnownAddress = getSharedPreferences(DeviceControlActivity.PREFS_NAME, MODE_PRIVATE)
+                .getString(DeviceControlActivity.PREF_LAST_DEVICE_ADDRESS, null);
+        if (mSkipNextScan) {
+            mSkipNextScan = false;
+            return;
+        }
         scanLeDevice(true);
     }
 
@@ -175,6 +256,7 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mScanAggregator.clear();
         mLeDeviceListAdapter.clear();
     }
 
@@ -182,60 +264,121 @@ public class DeviceScanActivity extends ListActivity {
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
+        openDevice(device.getAddress(), device.getName(), false);
+    }
+
+    /**
+     * @param automatic True if the app opened the device by itself on launch, in which case
+     *                  the remote control screen logs its startup timing from the launch.
+     */
+    private void openDevice(String address, String name, boolean automatic) {
+        mOpenKnownBridge = false;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        if (automatic) {
+            intent.putExtra(DeviceControlActivity.EXTRAS_LAUNCH_MILLIS, mLaunchMillis);
+        }
         if (mScanning) {
-            mBluetoothLeScanner.stopScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         startActivity(intent);
     }
 
+    // Runs on the main thread once the known bridge was seen during a scan.
+    private void onKnownBridgeSeen(BluetoothDevice device) {
+        if (!mOpenKnownBridge || !mScanning) {
+            return;
+        }
+        Log.d(TAG, "Known bridge seen " + (SystemClock.elapsedRealtime() - mLaunchMillis)
+                + " ms after launch");
+        openDevice(device.getAddress(), device.getName(), true);
+    }
+
+    private void showScanProfiles() {
+        final CharSequence[] names = new CharSequence[ScanProfile.ALL.length];
+        int selected = 0;
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = getText(ScanProfile.ALL[i].getNameId());
+            if (ScanProfile.ALL[i] == mScanProfile) {
+                selected = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_scan_profile)
+                .setSingleChoiceItems(names, selected, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.dismiss();
+                        getPreferences(MODE_PRIVATE).edit()
+                                .putInt(PREF_SCAN_PROFILE, which).apply();
+                        setScanProfile(ScanProfile.ALL[which]);
+                        if (mScanning) {
+                            scanLeDevice(false);
+                            scanLeDevice(true);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void setScanProfile(ScanProfile profile) {
+        mScanProfile = profile;
+        mSettings = profile.buildSettings(mOffloadedBatchingSupported);
+        Log.d(TAG, "Scan profile " + getText(profile.getNameId()) + ": "
+                + profile.describe(mOffloadedBatchingSupported));
+    }
+
+    // Scans in the windows chosen by the scan scheduler: one long window first, then short
+    // ones with pauses in between.
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothLeScanner.stopScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
             mScanning = true;
-            mBluetoothLeScanner.startScan(deviceFilters, mSettings, mLeScanCallback);
+            mKnownBridgeSeen.set(false);
+            mScanScheduler.start();
         } else {
             mScanning = false;
-            mBluetoothLeScanner.stopScan(mLeScanCallback);
+            mScanScheduler.stop();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning.  Devices are located by address
+    // through a hash map, so a batch of changes is applied without scanning the list.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ArrayList<ScanAggregator.Device> mLeDevices;
+        private HashMap<String, Integer> mPositions;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
             mLeDevices = new ArrayList<>();
+            mPositions = new HashMap<>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        // Adds new devices and replaces changed ones, then redraws the list once.
+        public void applyChanges(List<ScanAggregator.Device> changed) {
+            for (ScanAggregator.Device device : changed) {
+                final Integer position = mPositions.get(device.getAddress());
+                if (position != null) {
+                    mLeDevices.set(position, device);
+                } else {
+                    mPositions.put(device.getAddress(), mLeDevices.size());
+                    mLeDevices.add(device);
+                }
             }
+            notifyDataSetChanged();
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).getDevice();
         }
 
         public void clear() {
             mLeDevices.clear();
+            mPositions.clear();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -262,18 +405,22 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            ScanAggregator.Device device = mLeDevices.get(i);
+            String deviceName = device.getName();
+            if (deviceName == null)
+                deviceName = device.getDevice().getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceRssi.setText(getString(R.string.device_rssi, device.getRssi()));
 
             return view;
         }
@@ -284,26 +431,41 @@ public class DeviceScanActivity extends ListActivity {
             new ScanCallback() {
 
         @Override
-        public void onScanResult(int callbackType, final ScanResult result) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(result.getDevice());
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onScanResult(int callbackType, ScanResult result) {
+            mScanAggregator.onResult(result);
+            checkKnownBridge(result);
         }
 
-                @Override
-                public void onBatchScanResults(List<ScanResult> results) {
-                    for (ScanResult result : results) {
-                        onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+        // With a report delay, the controller hands over everything it collected at once.
+        // The batch is recorded in one go on the binder thread and reaches the list as a
+        // single update.
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            mScanAggregator.onResults(results);
+            for (ScanResult result : results) {
+                checkKnownBridge(result);
+            }
+        }
+
+        // Checked on the binder thread, so the known bridge is handled without waiting for the
+        // next list update.
+        private void checkKnownBridge(ScanResult result) {
+            final BluetoothDevice device = result.getDevice();
+            if (mOpenKnownBridge && device.getAddress().equals(mKnownAddress)
+                    && mKnownBridgeSeen.compareAndSet(false, true)) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onKnownBridgeSeen(device);
                     }
+                });
+            }
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+package net.delta_phi.bleiremote;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the macros defined in {@code res/raw/macros.json}.
+ *
+ * The file holds a {@code "macros"} array.  Every macro has a {@code "name"}, an optional
+ * default {@code "delay_ms"} between its keys and a {@code "keys"} array.  A key is either
+ * the name of a remote control button without its {@code button_} prefix, e.g.
+ * {@code "cd_plus_ten"}, or an object {@code {"key": "cd_5", "delay_ms": 500}} that overrides
+ * the pause before that key.
+ */
+final class MacroLibrary {
+    private final static String TAG = MacroLibrary.class.getSimpleName();
+
+    private static final int DEFAULT_DELAY_MS = 250;
+
+    private MacroLibrary() {
+    }
+
+    /**
+     * @return The macros from the resource file.  Macros that cannot be parsed are skipped
+     *         and logged.
+     */
+    static List<Macro> load(Context context) {
+        final List<Macro> macros = new ArrayList<>();
+        final JSONArray definitions;
+        try {
+            definitions = new JSONObject(readRawResource(context.getResources(), R.raw.macros))
+                    .getJSONArray("macros");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Unable to read macro definitions", e);
+            return macros;
+        }
+
+        for (int i = 0; i < definitions.length(); ++i) {
+            try {
+                macros.add(parseMacro(context, definitions.getJSONObject(i)));
+            } catch (JSONException e) {
+                Log.e(TAG, "Skipping macro " + i, e);
+            }
+        }
+        return macros;
+    }
+
+    private static Macro parseMacro(Context context, JSONObject definition)
+            throws JSONException {
+        final String name = definition.getString("name");
+        final int defaultDelay = definition.optInt("delay_ms", DEFAULT_DELAY_MS);
+        final JSONArray keys = definition.getJSONArray("keys");
+
+        final byte[][] frames = new byte[keys.length()][];
+        final int[] delays = new int[keys.length()];
+        for (int i = 0; i < keys.length(); ++i) {
+            final Object key = keys.get(i);
+            final String keyName;
+            if (key instanceof JSONObject) {
+                keyName = ((JSONObject) key).getString("key");
+                delays[i] = ((JSONObject) key).optInt("delay_ms", defaultDelay);
+            } else {
+                keyName = keys.getString(i);
+                delays[i] = defaultDelay;
+            }
+            final int viewId = context.getResources().getIdentifier(
+                    "button_" + keyName, "id", context.getPackageName());
+            frames[i] = RemoteCommandTable.getFrame(viewId);
+            if (frames[i] == null) {
+                throw new JSONException("Unknown key " + keyName + " in macro " + name);
+            }
+        }
+        return new Macro(name, frames, delays);
+    }
+
+    private static String readRawResource(Resources resources, int id) throws IOException {
+        final InputStream in = resources.openRawResource(id);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.delta_phi.bleiremote;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Debug screen showing the command metrics and connection state of
+ * {@code BluetoothLeService}, the same text {@code dumpsys} prints.  The text is refreshed
+ * every {@code REFRESH_INTERVAL_MS} while the screen is visible.
+ *
+ * The screen also runs {@link GattBenchmark}, once with writes without response and once with
+ * writes with response, and shows both results above the metrics.
+ */
+public class MetricsActivity extends Activity {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private TextView mMetricsText;
+    private BluetoothLeService mBluetoothLeService;
+    private final Handler mHandler = new Handler();
+    private boolean mResumed;
+    private boolean mBenchmarkRunning;
+    private String mBenchmarkResult;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            invalidateOptionsMenu();
+            refresh();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mMetricsText = (TextView) findViewById(R.id.metrics_text);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+        bindService(new Intent(this, BluetoothLeService.class), mServiceConnection,
+                BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        refresh();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.metrics, menu);
+        final MenuItem enabled = menu.findItem(R.id.menu_metrics_enabled);
+        enabled.setEnabled(mBluetoothLeService != null);
+        enabled.setChecked(mBluetoothLeService != null
+                && mBluetoothLeService.getMetrics().isEnabled());
+        menu.findItem(R.id.menu_metrics_benchmark).setEnabled(!mBenchmarkRunning);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.menu_metrics_enabled:
+                if (mBluetoothLeService != null) {
+                    final boolean enabled = !item.isChecked();
+                    mBluetoothLeService.setMetricsEnabled(enabled);
+                    item.setChecked(enabled);
+                    refresh();
+                }
+                return true;
+            case R.id.menu_metrics_reset:
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.getMetrics().reset();
+                    refresh();
+                }
+                return true;
+            case R.id.menu_metrics_benchmark:
+                runBenchmark();
+                return true;
+            case android.R.id.home:
+                onBackPressed();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void refresh() {
+        mHandler.removeCallbacks(mRefresh);
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final StringWriter text = new StringWriter();
+        final PrintWriter writer = new PrintWriter(text);
+        if (mBenchmarkResult != null) {
+            writer.println(mBenchmarkResult);
+            writer.println();
+        }
+        mBluetoothLeService.dump(writer);
+        writer.flush();
+        mMetricsText.setText(text.toString());
+        if (mResumed) {
+            mHandler.postDelayed(mRefresh, REFRESH_INTERVAL_MS);
+        }
+    }
+
+    // Runs the benchmark for both write types on a thread of its own, the results are shown
+    // once both are done.
+    private void runBenchmark() {
+        mBenchmarkRunning = true;
+        mBenchmarkResult = getString(R.string.benchmark_running);
+        invalidateOptionsMenu();
+        refresh();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final GattBenchmark.Result withoutResponse = new GattBenchmark().run();
+                final GattBenchmark.Result withResponse = GattBenchmark.withResponse().run();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBenchmarkRunning = false;
+                        mBenchmarkResult = withoutResponse != null && withResponse != null
+                                ? getString(R.string.benchmark_result, withoutResponse,
+                                        withResponse)
+                                : getString(R.string.benchmark_failed);
+                        invalidateOptionsMenu();
+                        refresh();
+                    }
+                });
+            }
+        }, GattBenchmark.class.getSimpleName()).start();
+    }
+}
@@ -0,0 +1,114 @@
+package net.delta_phi.bleiremote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A {@link GattAttributeCache} that keeps the layouts across restarts of the app, in private
+ * shared preferences, one JSON entry per device address:
+ * {@code {"hash": [..], "services": {"<service uuid>": {"<characteristic uuid>": properties}}}}.
+ */
+class PreferencesAttributeCache implements GattAttributeCache {
+    private final static String TAG = PreferencesAttributeCache.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "gatt_attribute_cache";
+
+    private final SharedPreferences mPreferences;
+
+    PreferencesAttributeCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public Layout get(String address) {
+        final String json = mPreferences.getString(address, null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return fromJson(new JSONObject(json));
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.w(TAG, "Dropping unreadable layout of " + address, e);
+            remove(address);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the layout of the device, replacing the previous one.  The write happens in the
+     * background.
+     */
+    @Override
+    public void put(String address, Layout layout) {
+        try {
+            mPreferences.edit().putString(address, toJson(layout).toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to store layout of " + address, e);
+        }
+    }
+
+    @Override
+    public void remove(String address) {
+        mPreferences.edit().remove(address).apply();
+    }
+
+    private static JSONObject toJson(Layout layout) throws JSONException {
+        final JSONObject json = new JSONObject();
+        final byte[] databaseHash = layout.getDatabaseHash();
+        if (databaseHash != null) {
+            final JSONArray hash = new JSONArray();
+            for (byte b : databaseHash) {
+                hash.put(b & 0xFF);
+            }
+            json.put("hash", hash);
+        }
+        final JSONObject services = new JSONObject();
+        for (Map.Entry<UUID, Map<UUID, Integer>> service : layout.getServices().entrySet()) {
+            final JSONObject characteristics = new JSONObject();
+            for (Map.Entry<UUID, Integer> characteristic : service.getValue().entrySet()) {
+                characteristics.put(characteristic.getKey().toString(),
+                        (int) characteristic.getValue());
+            }
+            services.put(service.getKey().toString(), characteristics);
+        }
+        json.put("services", services);
+        return json;
+    }
+
+    private static Layout fromJson(JSONObject json) throws JSONException {
+        byte[] databaseHash = null;
+        final JSONArray hash = json.optJSONArray("hash");
+        if (hash != null) {
+            databaseHash = new byte[hash.length()];
+            for (int i = 0; i < databaseHash.length; ++i) {
+                databaseHash[i] = (byte) hash.getInt(i);
+            }
+        }
+        final Map<UUID, Map<UUID, Integer>> services = new HashMap<>();
+        final JSONObject servicesJson = json.getJSONObject("services");
+        final Iterator<String> serviceKeys = servicesJson.keys();
+        while (serviceKeys.hasNext()) {
+            final String serviceKey = serviceKeys.next();
+            final JSONObject characteristicsJson = servicesJson.getJSONObject(serviceKey);
+            final Map<UUID, Integer> characteristics = new HashMap<>();
+            final Iterator<String> characteristicKeys = characteristicsJson.keys();
+            while (characteristicKeys.hasNext()) {
+                final String characteristicKey = characteristicKeys.next();
+                characteristics.put(UUID.fromString(characteristicKey),
+                        characteristicsJson.getInt(characteristicKey));
+            }
+            services.put(UUID.fromString(serviceKey), characteristics);
+        }
+        return new Layout(databaseHash, services);
+    }
+}
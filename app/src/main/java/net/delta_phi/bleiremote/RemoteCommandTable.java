@@ -0,0 +1,166 @@
+package net.delta_phi.bleiremote;
+
+import java.util.Arrays;
+
+/**
+ * Maps the buttons of the remote control screen to the frames sent to the BLE-IR bridge.
+ *
+ * The table names the device the screen controls, i.e. its IR protocol and address, and the
+ * function code of every button.  A device with another protocol only needs another
+ * {@link IrEncoder} and its own codes.  All frames are encoded once when the class is loaded,
+ * and looking up the frame for a click is a binary search over the sorted view ids, so it
+ * does not allocate.  The returned arrays are shared and must not be modified.
+ *
+ * Buttons that step a value, such as the volume, form a command class of their own: when
+ * presses pile up on a slow link, their frames may be merged into one frame that IRSND
+ * repeats, see {@link #isStep(byte[])}.  All other frames, e.g. digits, are sent one by one.
+ * Power and mute are urgent, see {@link #isUrgent(byte[])}: they overtake queued routine
+ * traffic.
+ */
+final class RemoteCommandTable {
+
+    static final int FRAME_LENGTH = IrEncoder.FRAME_LENGTH;
+
+    // The Technics receiver and CD player the remote control screen is laid out for.
+    private static final IrEncoder ENCODER = IrEncoder.TECHNICS;
+    private static final int ADDRESS = 0x0000;
+    private static final int FLAGS = 0x00;
+
+    // Pairs of button view id and function code.
+    private static final int[] KEYS = {
+            R.id.button_onoff, 0x0409,
+            R.id.button_muting, 0x04E9,
+            R.id.button_vol_down, 0x04A9,
+            R.id.button_vol_up, 0x0489,
+            R.id.button_fm_1, 0x0209,
+            R.id.button_fm_2, 0x0229,
+            R.id.button_fm_3, 0x0249,
+            R.id.button_fm_4, 0x0269,
+            R.id.button_fm_5, 0x0289,
+            R.id.button_fm_6, 0x02A9,
+            R.id.button_fm_7, 0x02C9,
+            R.id.button_fm_8, 0x02E9,
+            R.id.button_deck_play, 0x0149,
+            R.id.button_deck_stop, 0x0009,
+            R.id.button_fm_9, 0x0309,
+            R.id.button_fm_0, 0x0329,
+            R.id.button_cd_play, 0x014C,
+            R.id.button_cd_stop, 0x000C,
+            R.id.button_cd_skip_rew, 0x004C,
+            R.id.button_cd_skip_ff, 0x006C,
+            R.id.button_cd_program, 0x03AC,
+            R.id.button_cd_1, 0x020C,
+            R.id.button_cd_2, 0x022C,
+            R.id.button_cd_3, 0x024C,
+            R.id.button_cd_4, 0x026C,
+            R.id.button_cd_5, 0x028C,
+            R.id.button_cd_6, 0x02AC,
+            R.id.button_cd_7, 0x02CC,
+            R.id.button_cd_8, 0x02EC,
+            R.id.button_cd_9, 0x030C,
+            R.id.button_cd_0, 0x032C,
+            R.id.button_cd_plus_ten, 0x034C,
+    };
+
+    // Buttons whose repeated presses add up, so that N presses equal one frame repeated N times.
+    private static final int[] STEP_KEYS = {
+            R.id.button_vol_down,
+            R.id.button_vol_up,
+    };
+
+    // Buttons the user expects to act at once, whatever else is queued.
+    private static final int[] URGENT_KEYS = {
+            R.id.button_onoff,
+            R.id.button_muting,
+    };
+
+    // The view ids in ascending order, and the frame of each.
+    private static final int[] VIEW_IDS = new int[KEYS.length / 2];
+    private static final byte[][] FRAMES = new byte[VIEW_IDS.length][];
+    private static final byte[][] STEP_FRAMES = new byte[STEP_KEYS.length][];
+    private static final byte[][] URGENT_FRAMES = new byte[URGENT_KEYS.length][];
+
+    static {
+        for (int i = 0; i < VIEW_IDS.length; i++) {
+            VIEW_IDS[i] = KEYS[2 * i];
+        }
+        Arrays.sort(VIEW_IDS);
+        for (int i = 0; i < KEYS.length; i += 2) {
+            FRAMES[Arrays.binarySearch(VIEW_IDS, KEYS[i])] =
+                    ENCODER.encode(ADDRESS, KEYS[i + 1], FLAGS);
+        }
+        for (int i = 0; i < STEP_KEYS.length; i++) {
+            STEP_FRAMES[i] = getFrame(STEP_KEYS[i]);
+        }
+        for (int i = 0; i < URGENT_KEYS.length; i++) {
+            URGENT_FRAMES[i] = getFrame(URGENT_KEYS[i]);
+        }
+    }
+
+    /** The command classes of the table, for {@link BridgeConnection}. */
+    static final CommandClasses COMMAND_CLASSES = new CommandClasses() {
+        @Override
+        public boolean isStep(byte[] frame) {
+            return RemoteCommandTable.isStep(frame);
+        }
+
+        @Override
+        public boolean isUrgent(byte[] frame) {
+            return RemoteCommandTable.isUrgent(frame);
+        }
+    };
+
+    private RemoteCommandTable() {
+    }
+
+    /**
+     * @param viewId The id of a button on the remote control screen.
+     *
+     * @return The frame for the button, or null if the view is not a remote control button.
+     */
+    static byte[] getFrame(int viewId) {
+        final int index = Arrays.binarySearch(VIEW_IDS, viewId);
+        return index >= 0 ? FRAMES[index] : null;
+    }
+
+    /**
+     * @return Return true if the frame is a step command, i.e. several of them may be merged
+     *         into one with {@link IrEncoder#mergeRepetitions(byte[], byte[])}.  Repetitions
+     *         in the flags are ignored.
+     */
+    static boolean isStep(byte[] frame) {
+        return contains(STEP_FRAMES, frame);
+    }
+
+    /**
+     * @return Return true if the frame is an urgent command, i.e. it is sent ahead of queued
+     *         key presses and macros.  Repetitions in the flags are ignored.
+     */
+    static boolean isUrgent(byte[] frame) {
+        return contains(URGENT_FRAMES, frame);
+    }
+
+    private static boolean contains(byte[][] frames, byte[] frame) {
+        for (byte[] candidate : frames) {
+            if (IrEncoder.isSameCommand(candidate, frame)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of buttons in the table.
+     */
+    static int size() {
+        return VIEW_IDS.length;
+    }
+
+    /**
+     * @return The view id of the button stored at {@code index}, in the range
+     *         {@code 0 <= index < size()}.
+     */
+    static int viewIdAt(int index) {
+        return VIEW_IDS[index];
+    }
+}
@@ -0,0 +1,180 @@
+package net.delta_phi.bleiremote;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects scan results per device address and hands the changes to the UI in batches.
+ *
+ * Every advertisement is looked up by address in a hash map, which tracks the last RSSI of
+ * the device.  Only results that change what the device list shows, i.e. a new device, a new
+ * name or an RSSI that moved by at least {@code RSSI_VISIBLE_DELTA}, are queued for the UI.
+ * Queued changes are delivered at most once per {@code FRAME_INTERVAL_MS}, so a crowded
+ * channel results in one list update per frame instead of one per advertisement.
+ *
+ * Results may arrive on any thread; the listener is called on the handler's thread.
+ */
+class ScanAggregator {
+    private final static String TAG = ScanAggregator.class.getSimpleName();
+
+    // Roughly one display frame.
+    private static final long FRAME_INTERVAL_MS = 16;
+    // RSSI changes smaller than this are not worth redrawing the list for.
+    private static final int RSSI_VISIBLE_DELTA = 5;
+
+    /**
+     * Receives the batched changes.
+     */
+    interface Listener {
+        /**
+         * @param changed The devices that were added or changed visibly since the last call,
+         *                in the order they were first seen.
+         */
+        void onDevicesChanged(List<Device> changed);
+    }
+
+    /**
+     * Snapshot of a scanned device as shown in the list.
+     */
+    static class Device {
+        private final BluetoothDevice mDevice;
+        private final String mName;
+        private final int mRssi;
+
+        private Device(BluetoothDevice device, String name, int rssi) {
+            mDevice = device;
+            mName = name;
+            mRssi = rssi;
+        }
+
+        BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        String getAddress() {
+            return mDevice.getAddress();
+        }
+
+        /**
+         * @return The advertised name, or null if the device has not sent one.
+         */
+        String getName() {
+            return mName;
+        }
+
+        int getRssi() {
+            return mRssi;
+        }
+    }
+
+    // Latest state of a device.  Only the snapshot in mShown has been handed to the UI.
+    private static class Entry {
+        int mRssi;
+        Device mShown;
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // Guarded by this.
+    private final HashMap<String, Entry> mDevices = new HashMap<>();
+    private final LinkedHashMap<String, Device> mChanged = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+    private long mResultCount;
+    private long mFlushCount;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            final List<Device> changed;
+            synchronized (ScanAggregator.this) {
+                mFlushScheduled = false;
+                if (mChanged.isEmpty()) {
+                    return;
+                }
+                changed = new ArrayList<>(mChanged.values());
+                mChanged.clear();
+                mFlushCount++;
+            }
+            mListener.onDevicesChanged(changed);
+        }
+    };
+
+    /**
+     * @param handler Handler of the thread the listener runs on.
+     */
+    ScanAggregator(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Records one scan result.
+     */
+    void onResult(ScanResult result) {
+        synchronized (this) {
+            record(result);
+        }
+    }
+
+    /**
+     * Records a batch of scan results at once.
+     */
+    void onResults(List<ScanResult> results) {
+        synchronized (this) {
+            for (ScanResult result : results) {
+                record(result);
+            }
+        }
+    }
+
+    /**
+     * Forgets all devices and drops the changes not delivered yet.
+     */
+    synchronized void clear() {
+        if (mResultCount > 0) {
+            Log.d(TAG, mResultCount + " results from " + mDevices.size() + " devices in "
+                    + mFlushCount + " list updates");
+        }
+        mDevices.clear();
+        mChanged.clear();
+        mResultCount = 0;
+        mFlushCount = 0;
+    }
+
+    // Must be called with the lock held.
+    private void record(ScanResult result) {
+        mResultCount++;
+        final BluetoothDevice bluetoothDevice = result.getDevice();
+        final String address = bluetoothDevice.getAddress();
+        final String advertisedName = result.getScanRecord() != null
+                ? result.getScanRecord().getDeviceName() : null;
+        Entry entry = mDevices.get(address);
+        if (entry == null) {
+            entry = new Entry();
+            mDevices.put(address, entry);
+        }
+        entry.mRssi = result.getRssi();
+
+        final Device shown = entry.mShown;
+        final String name = advertisedName != null || shown == null
+                ? advertisedName : shown.getName();
+        if (shown != null && (name == null || name.equals(shown.getName()))
+                && Math.abs(entry.mRssi - shown.getRssi()) < RSSI_VISIBLE_DELTA) {
+            return;
+        }
+        entry.mShown = new Device(bluetoothDevice, name, entry.mRssi);
+        mChanged.put(address, entry.mShown);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, FRAME_INTERVAL_MS);
+        }
+    }
+}
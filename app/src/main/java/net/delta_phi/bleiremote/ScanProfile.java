@@ -0,0 +1,148 @@
+package net.delta_phi.bleiremote;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * A selectable trade-off between scan latency and power for {@code DeviceScanActivity}.
+ *
+ * Each profile picks a scan mode and, where the controller supports offloaded batching, a
+ * report delay.  With a report delay the controller collects advertisements in hardware and
+ * wakes the application processor once per delay with a batch, instead of once per
+ * advertisement.  Without offloaded batching the delay is ignored and results are reported
+ * one by one.
+ *
+ * Match modes ({@code ScanSettings.Builder.setMatchMode}) need API 23 and are not available
+ * with the API level this app is compiled against.
+ */
+final class ScanProfile {
+
+    // Scan window and interval the platform uses for each scan mode.
+    private static final int LOW_POWER_WINDOW_MS = 512;
+    private static final int LOW_POWER_INTERVAL_MS = 5120;
+    private static final int BALANCED_WINDOW_MS = 1024;
+    private static final int BALANCED_INTERVAL_MS = 4096;
+    private static final int LOW_LATENCY_WINDOW_MS = 4096;
+    private static final int LOW_LATENCY_INTERVAL_MS = 4096;
+
+    static final ScanProfile LOW_LATENCY = new ScanProfile(R.string.scan_profile_low_latency,
+            ScanSettings.SCAN_MODE_LOW_LATENCY, 0);
+    static final ScanProfile BALANCED = new ScanProfile(R.string.scan_profile_balanced,
+            ScanSettings.SCAN_MODE_BALANCED, 1000);
+    static final ScanProfile LOW_POWER = new ScanProfile(R.string.scan_profile_low_power,
+            ScanSettings.SCAN_MODE_LOW_POWER, 5000);
+
+    /** All profiles, in the order they are offered to the user. */
+    static final ScanProfile[] ALL = {LOW_LATENCY, BALANCED, LOW_POWER};
+
+    private final int mNameId;
+    private final int mScanMode;
+    private final long mReportDelayMillis;
+
+    private ScanProfile(int nameId, int scanMode, long reportDelayMillis) {
+        mNameId = nameId;
+        mScanMode = scanMode;
+        mReportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * @param index The position of a profile in {@link #ALL}, e.g. as stored in the
+     *              preferences.
+     *
+     * @return The profile, or {@link #LOW_LATENCY} if there is none at {@code index}.
+     */
+    static ScanProfile forIndex(int index) {
+        return index >= 0 && index < ALL.length ? ALL[index] : LOW_LATENCY;
+    }
+
+    /**
+     * @return The string resource with the name of the profile.
+     */
+    int getNameId() {
+        return mNameId;
+    }
+
+    /**
+     * @param offloadedBatchingSupported The result of
+     *        {@code BluetoothAdapter.isOffloadedScanBatchingSupported()}.
+     */
+    ScanSettings buildSettings(boolean offloadedBatchingSupported) {
+        final ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(mScanMode);
+        final long reportDelay = getReportDelayMillis(offloadedBatchingSupported);
+        if (reportDelay > 0) {
+            builder.setReportDelay(reportDelay);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return One of the {@code ScanSettings.SCAN_MODE_*} constants.
+     */
+    int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * @return The report delay the settings ask for, or 0 if results are reported one by one.
+     */
+    long getReportDelayMillis(boolean offloadedBatchingSupported) {
+        return offloadedBatchingSupported ? mReportDelayMillis : 0;
+    }
+
+    /**
+     * @return The share of time the radio listens, in percent.
+     */
+    int getDutyCyclePercent() {
+        return getWindowMillis() * 100 / getIntervalMillis();
+    }
+
+    /**
+     * @return The worst case time from the first advertisement of a device to the
+     *         application seeing it, for a device advertising at least once per scan window.
+     */
+    long getWorstCaseLatencyMillis(boolean offloadedBatchingSupported) {
+        return getIntervalMillis() - getWindowMillis()
+                + getReportDelayMillis(offloadedBatchingSupported);
+    }
+
+    /**
+     * @return The power/latency trade-off of the profile on this controller, for logging.
+     */
+    String describe(boolean offloadedBatchingSupported) {
+        final long batching = getReportDelayMillis(offloadedBatchingSupported);
+        return "scan mode " + mScanMode
+                + ", duty cycle " + getDutyCyclePercent() + "%"
+                + ", worst case latency " + getWorstCaseLatencyMillis(offloadedBatchingSupported)
+                + " ms"
+                + (batching > 0
+                        ? ", batched every " + batching + " ms"
+                        : ", one wakeup per advertisement");
+    }
+
+    /**
+     * @return The time the radio listens at the start of every scan interval.
+     */
+    int getWindowMillis() {
+        switch (mScanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return LOW_LATENCY_WINDOW_MS;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return LOW_POWER_WINDOW_MS;
+            default:
+                return BALANCED_WINDOW_MS;
+        }
+    }
+
+    /**
+     * @return The time from the start of one scan window to the start of the next.
+     */
+    int getIntervalMillis() {
+        switch (mScanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return LOW_LATENCY_INTERVAL_MS;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return LOW_POWER_INTERVAL_MS;
+            default:
+                return BALANCED_INTERVAL_MS;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.Vector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the frame work of a click before and after {@link RemoteCommandTable}.  Before, the
+ * click listener scanned the collection of buttons for the clicked view, switched over its id
+ * and assembled the frame in a {@code ByteArrayOutputStream}; that path is kept below as it
+ * was.  Now the frame is looked up, and the table builds it with {@link IrEncoder}, which is
+ * timed as well since a table for another device could encode its frames on demand.  The
+ * bounds are loose enough for a busy build machine and still catch an accidental scan or
+ * allocation per click.
+ */
+public class FrameBuildingBenchmarkTest {
+
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int ROUNDS = 200000;
+    private static final long MAX_LOOKUP_NANOS = 1000;
+    private static final long MAX_ENCODE_NANOS = 1000;
+    private static final float MIN_SPEEDUP = 2;
+
+    // The buttons of the remote control screen, in the order the screen registered them.
+    private static final int[] BUTTONS = {
+            R.id.button_onoff,
+            R.id.button_muting,
+            R.id.button_vol_down,
+            R.id.button_vol_up,
+            R.id.button_fm_1,
+            R.id.button_fm_2,
+            R.id.button_fm_3,
+            R.id.button_fm_4,
+            R.id.button_fm_5,
+            R.id.button_fm_6,
+            R.id.button_fm_7,
+            R.id.button_fm_8,
+            R.id.button_deck_play,
+            R.id.button_deck_stop,
+            R.id.button_fm_9,
+            R.id.button_fm_0,
+            R.id.button_cd_play,
+            R.id.button_cd_stop,
+            R.id.button_cd_skip_rew,
+            R.id.button_cd_skip_ff,
+            R.id.button_cd_program,
+            R.id.button_cd_1,
+            R.id.button_cd_2,
+            R.id.button_cd_3,
+            R.id.button_cd_4,
+            R.id.button_cd_5,
+            R.id.button_cd_6,
+            R.id.button_cd_7,
+            R.id.button_cd_8,
+            R.id.button_cd_9,
+            R.id.button_cd_0,
+            R.id.button_cd_plus_ten,
+    };
+
+    // Stands in for a button; the old listener compared views by identity.
+    private static class FakeView {
+        final int mId;
+
+        FakeView(int id) {
+            mId = id;
+        }
+
+        int getId() {
+            return mId;
+        }
+    }
+
+    private final Collection<FakeView> mButtonCollection = new Vector<FakeView>(50);
+    private final FakeView[] mViews = new FakeView[BUTTONS.length];
+    // The function codes of the buttons, as the table hands them to the encoder.
+    private final int[] mCodes = new int[BUTTONS.length];
+
+    public FrameBuildingBenchmarkTest() {
+        for (int i = 0; i < BUTTONS.length; i++) {
+            mViews[i] = new FakeView(BUTTONS[i]);
+            mButtonCollection.add(mViews[i]);
+            final byte[] command = getCommandForButton(mViews[i]);
+            mCodes[i] = (command[0] & 0xFF) << 8 | command[1] & 0xFF;
+        }
+    }
+
+    @Test
+    public void lookupMatchesOldFrames() {
+        for (FakeView view : mViews) {
+            assertArrayEquals(buildOnClick(view), RemoteCommandTable.getFrame(view.getId()));
+        }
+    }
+
+    @Test
+    public void lookupIsFasterThanBuildingOnClick() {
+        buildOnClick(WARMUP_ROUNDS);
+        lookup(WARMUP_ROUNDS);
+
+        long start = System.nanoTime();
+        int checksum = buildOnClick(ROUNDS);
+        final long perBuild = (System.nanoTime() - start) / ROUNDS;
+        start = System.nanoTime();
+        checksum -= lookup(ROUNDS);
+        final long perLookup = Math.max(1, (System.nanoTime() - start) / ROUNDS);
+        System.out.println("build on click: " + perBuild + " ns per click");
+        System.out.println("RemoteCommandTable.getFrame: " + perLookup + " ns per click");
+
+        assertTrue(checksum == 0);
+        assertTrue("lookup took " + perLookup + " ns", perLookup < MAX_LOOKUP_NANOS);
+        assertTrue("lookup took " + perLookup + " ns, building " + perBuild + " ns",
+                perBuild >= MIN_SPEEDUP * perLookup);
+    }
+
+    @Test
+    public void encodingIsFasterThanBuildingOnClick() {
+        final byte[] frame = new byte[IrEncoder.FRAME_LENGTH];
+        buildOnClick(WARMUP_ROUNDS);
+        encode(WARMUP_ROUNDS, frame);
+
+        long start = System.nanoTime();
+        final int checksum = buildOnClick(ROUNDS);
+        final long perBuild = (System.nanoTime() - start) / ROUNDS;
+        start = System.nanoTime();
+        final int encoded = encode(ROUNDS, frame);
+        final long perEncode = Math.max(1, (System.nanoTime() - start) / ROUNDS);
+        System.out.println("build on click: " + perBuild + " ns per click");
+        System.out.println("IrEncoder.encode: " + perEncode + " ns per frame");
+
+        assertTrue(checksum != 0 && encoded != 0);
+        assertTrue("encode took " + perEncode + " ns", perEncode < MAX_ENCODE_NANOS);
+        assertTrue("encode took " + perEncode + " ns, building " + perBuild + " ns",
+                perBuild >= MIN_SPEEDUP * perEncode);
+    }
+
+    private int buildOnClick(int rounds) {
+        int checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            checksum += buildOnClick(mViews[i % mViews.length])[3];
+        }
+        return checksum;
+    }
+
+    private int lookup(int rounds) {
+        int checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            checksum += RemoteCommandTable.getFrame(mViews[i % mViews.length].getId())[3];
+        }
+        return checksum;
+    }
+
+    // Encodes the frames of the buttons into a reused buffer.
+    private int encode(int rounds, byte[] frame) {
+        int checksum = 0;
+        for (int i = 0; i < rounds; i++) {
+            IrEncoder.TECHNICS.encode(0x0000, mCodes[i % mCodes.length], 0x00, frame, 0);
+            checksum += frame[3];
+        }
+        return checksum;
+    }
+
+    // The click listener of the remote control screen before the table existed.
+    private byte[] buildOnClick(FakeView v) {
+        int i = 0;
+        boolean found = false;
+        for (FakeView button : mButtonCollection) {
+            if (button == v) {
+                found = true;
+                break;
+            }
+            ++i;
+        }
+        if (!found) {
+            return null;
+        }
+        Byte protocol = 0x2f;
+        Byte[] address = {0x00, 0x00};
+        byte[] command = getCommandForButton(v);
+        Byte flags = 0x00;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(10);
+        baos.write(protocol);
+        baos.write(address[0]);
+        baos.write(address[1]);
+        baos.write(command[1]);
+        baos.write(command[0]);
+        baos.write(flags);
+
+        return baos.toByteArray();
+    }
+
+    private static byte[] getCommandForButton(FakeView v) {
+        byte command[] = {0x00, 0x00};
+        switch (v.getId()) {
+            case R.id.button_onoff:
+                command[0] = (byte) 0x04;
+                command[1] = (byte) 0x09;
+                break;
+            case R.id.button_muting:
+                command[0] = (byte) 0x04;
+                command[1] = (byte) 0xE9;
+                break;
+            case R.id.button_vol_down:
+                command[0] = (byte) 0x04;
+                command[1] = (byte) 0xA9;
+                break;
+            case R.id.button_vol_up:
+                command[0] = (byte) 0x04;
+                command[1] = (byte) 0x89;
+                break;
+            case R.id.button_fm_1:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x09;
+                break;
+            case R.id.button_fm_2:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x29;
+                break;
+            case R.id.button_fm_3:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x49;
+                break;
+            case R.id.button_fm_4:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x69;
+                break;
+            case R.id.button_fm_5:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x89;
+                break;
+            case R.id.button_fm_6:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xA9;
+                break;
+            case R.id.button_fm_7:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xC9;
+                break;
+            case R.id.button_fm_8:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xE9;
+                break;
+            case R.id.button_deck_play:
+                command[0] = (byte) 0x01;
+                command[1] = (byte) 0x49;
+                break;
+            case R.id.button_deck_stop:
+                command[0] = (byte) 0x00;
+                command[1] = (byte) 0x09;
+                break;
+            case R.id.button_fm_9:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0x09;
+                break;
+            case R.id.button_fm_0:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0x29;
+                break;
+            case R.id.button_cd_play:
+                command[0] = (byte) 0x01;
+                command[1] = (byte) 0x4C;
+                break;
+            case R.id.button_cd_stop:
+                command[0] = (byte) 0x00;
+                command[1] = (byte) 0x0C;
+                break;
+            case R.id.button_cd_skip_rew:
+                command[0] = (byte) 0x00;
+                command[1] = (byte) 0x4C;
+                break;
+            case R.id.button_cd_skip_ff:
+                command[0] = (byte) 0x00;
+                command[1] = (byte) 0x6C;
+                break;
+            case R.id.button_cd_program:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0xAC;
+                break;
+            case R.id.button_cd_1:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x0C;
+                break;
+            case R.id.button_cd_2:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x2C;
+                break;
+            case R.id.button_cd_3:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x4C;
+                break;
+            case R.id.button_cd_4:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x6C;
+                break;
+            case R.id.button_cd_5:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0x8C;
+                break;
+            case R.id.button_cd_6:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xAC;
+                break;
+            case R.id.button_cd_7:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xCC;
+                break;
+            case R.id.button_cd_8:
+                command[0] = (byte) 0x02;
+                command[1] = (byte) 0xEC;
+                break;
+            case R.id.button_cd_9:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0x0C;
+                break;
+            case R.id.button_cd_0:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0x2C;
+                break;
+            case R.id.button_cd_plus_ten:
+                command[0] = (byte) 0x03;
+                command[1] = (byte) 0x4C;
+                break;
+            default:
+
+        }
+        return command;
+    }
+}
@@ -0,0 +1,94 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteCommandTableTest {
+
+    // The command bytes of every button as the screen wrote them before the table existed:
+    // [0x2f, 0x00, 0x00, low, high, 0x00].
+    private static final int[][] BASELINE = {
+            {R.id.button_onoff, 0x09, 0x04},
+            {R.id.button_muting, 0xE9, 0x04},
+            {R.id.button_vol_down, 0xA9, 0x04},
+            {R.id.button_vol_up, 0x89, 0x04},
+            {R.id.button_fm_1, 0x09, 0x02},
+            {R.id.button_fm_2, 0x29, 0x02},
+            {R.id.button_fm_3, 0x49, 0x02},
+            {R.id.button_fm_4, 0x69, 0x02},
+            {R.id.button_fm_5, 0x89, 0x02},
+            {R.id.button_fm_6, 0xA9, 0x02},
+            {R.id.button_fm_7, 0xC9, 0x02},
+            {R.id.button_fm_8, 0xE9, 0x02},
+            {R.id.button_deck_play, 0x49, 0x01},
+            {R.id.button_deck_stop, 0x09, 0x00},
+            {R.id.button_fm_9, 0x09, 0x03},
+            {R.id.button_fm_0, 0x29, 0x03},
+            {R.id.button_cd_play, 0x4C, 0x01},
+            {R.id.button_cd_stop, 0x0C, 0x00},
+            {R.id.button_cd_skip_rew, 0x4C, 0x00},
+            {R.id.button_cd_skip_ff, 0x6C, 0x00},
+            {R.id.button_cd_program, 0xAC, 0x03},
+            {R.id.button_cd_1, 0x0C, 0x02},
+            {R.id.button_cd_2, 0x2C, 0x02},
+            {R.id.button_cd_3, 0x4C, 0x02},
+            {R.id.button_cd_4, 0x6C, 0x02},
+            {R.id.button_cd_5, 0x8C, 0x02},
+            {R.id.button_cd_6, 0xAC, 0x02},
+            {R.id.button_cd_7, 0xCC, 0x02},
+            {R.id.button_cd_8, 0xEC, 0x02},
+            {R.id.button_cd_9, 0x0C, 0x03},
+            {R.id.button_cd_0, 0x2C, 0x03},
+            {R.id.button_cd_plus_ten, 0x4C, 0x03},
+    };
+
+    @Test
+    public void framesMatchBaseline() {
+        for (int[] key : BASELINE) {
+            final byte[] expected = {0x2f, 0x00, 0x00, (byte) key[1], (byte) key[2], 0x00};
+            assertArrayEquals("view " + key[0], expected, RemoteCommandTable.getFrame(key[0]));
+        }
+    }
+
+    @Test
+    public void coversEveryButtonOnce() {
+        assertEquals(BASELINE.length, RemoteCommandTable.size());
+        final Set<Integer> viewIds = new HashSet<>();
+        for (int i = 0; i < RemoteCommandTable.size(); i++) {
+            final int viewId = RemoteCommandTable.viewIdAt(i);
+            assertTrue(viewIds.add(viewId));
+            assertNotNull(RemoteCommandTable.getFrame(viewId));
+        }
+    }
+
+    @Test
+    public void unknownViewHasNoFrame() {
+        assertNull(RemoteCommandTable.getFrame(0));
+        assertNull(RemoteCommandTable.getFrame(R.id.device_name));
+    }
+
+    @Test
+    public void classifiesStepAndUrgentCommands() {
+        final byte[] volumeUp = RemoteCommandTable.getFrame(R.id.button_vol_up);
+        assertTrue(RemoteCommandTable.isStep(volumeUp));
+        assertTrue(RemoteCommandTable.isStep(RemoteCommandTable.getFrame(R.id.button_vol_down)));
+        assertFalse(RemoteCommandTable.isStep(RemoteCommandTable.getFrame(R.id.button_cd_1)));
+        assertTrue(RemoteCommandTable.isUrgent(RemoteCommandTable.getFrame(R.id.button_onoff)));
+        assertTrue(RemoteCommandTable.isUrgent(RemoteCommandTable.getFrame(R.id.button_muting)));
+        assertFalse(RemoteCommandTable.isUrgent(volumeUp));
+
+        // A merged step command is still a step command.
+        final byte[] merged = IrEncoder.mergeRepetitions(volumeUp, volumeUp);
+        assertEquals(0x01, merged[5]);
+        assertTrue(RemoteCommandTable.isStep(merged));
+    }
+}
@@ -0,0 +1,121 @@
+package net.delta_phi.bleiremote;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the scan profiles against a fake scanner.  The scanner listens for the profile's
+ * window at the start of every interval, and with offloaded batching hands its results over
+ * once per report delay, counted from the start of the scan.  A bridge starts advertising at
+ * every millisecond of enough scan intervals to meet every phase of the report delay, and the
+ * longest time until the application sees it is compared with the worst case the profile
+ * logs.
+ */
+public class ScanProfileTest {
+
+    // The shortest advertising interval BLE allows, so the bridge is heard right after a
+    // window opens.
+    private static final int ADVERTISING_INTERVAL_MS = 20;
+    private static final int SWEPT_INTERVALS = 250;
+
+    /**
+     * A scanner that follows the timing of a profile.
+     */
+    private static class FakeScanner {
+        private final int mWindowMillis;
+        private final int mIntervalMillis;
+        private final long mReportDelayMillis;
+
+        FakeScanner(ScanProfile profile, boolean offloadedBatchingSupported) {
+            mWindowMillis = profile.getWindowMillis();
+            mIntervalMillis = profile.getIntervalMillis();
+            mReportDelayMillis = profile.getReportDelayMillis(offloadedBatchingSupported);
+        }
+
+        // The time the application receives a result the radio heard at heardMillis.
+        long deliveredAt(long heardMillis) {
+            if (mReportDelayMillis == 0) {
+                return heardMillis;
+            }
+            return (heardMillis + mReportDelayMillis - 1) / mReportDelayMillis
+                    * mReportDelayMillis;
+        }
+
+        // The time from the first advertisement at startMillis until the application sees
+        // the device.
+        long latency(long startMillis) {
+            final long phase = startMillis % mIntervalMillis;
+            long heard = startMillis;
+            if (phase >= mWindowMillis) {
+                // The first advertisement once the next window opened.
+                final long windowStart = startMillis - phase + mIntervalMillis;
+                heard = startMillis + (windowStart - startMillis + ADVERTISING_INTERVAL_MS - 1)
+                        / ADVERTISING_INTERVAL_MS * ADVERTISING_INTERVAL_MS;
+            }
+            return deliveredAt(heard) - startMillis;
+        }
+
+        long worstLatency() {
+            long worst = 0;
+            for (long start = 0; start < SWEPT_INTERVALS * mIntervalMillis; start++) {
+                worst = Math.max(worst, latency(start));
+            }
+            return worst;
+        }
+    }
+
+    @Test
+    public void storedIndexSelectsProfile() {
+        for (int i = 0; i < ScanProfile.ALL.length; i++) {
+            assertSame(ScanProfile.ALL[i], ScanProfile.forIndex(i));
+        }
+        assertSame(ScanProfile.LOW_LATENCY, ScanProfile.forIndex(-1));
+        assertSame(ScanProfile.LOW_LATENCY, ScanProfile.forIndex(ScanProfile.ALL.length));
+    }
+
+    @Test
+    public void settingsFollowTheProfile() {
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, ScanProfile.LOW_LATENCY.getScanMode());
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, ScanProfile.BALANCED.getScanMode());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, ScanProfile.LOW_POWER.getScanMode());
+
+        assertEquals(100, ScanProfile.LOW_LATENCY.getDutyCyclePercent());
+        assertEquals(25, ScanProfile.BALANCED.getDutyCyclePercent());
+        assertEquals(10, ScanProfile.LOW_POWER.getDutyCyclePercent());
+    }
+
+    @Test
+    public void reportDelayNeedsOffloadedBatching() {
+        assertEquals(0, ScanProfile.LOW_LATENCY.getReportDelayMillis(true));
+        assertEquals(1000, ScanProfile.BALANCED.getReportDelayMillis(true));
+        assertEquals(5000, ScanProfile.LOW_POWER.getReportDelayMillis(true));
+        for (ScanProfile profile : ScanProfile.ALL) {
+            assertEquals(0, profile.getReportDelayMillis(false));
+        }
+    }
+
+    @Test
+    public void fakeScannerStaysWithinWorstCaseLatency() {
+        for (ScanProfile profile : ScanProfile.ALL) {
+            for (boolean offloaded : new boolean[] {false, true}) {
+                final long predicted = profile.getWorstCaseLatencyMillis(offloaded);
+                final long measured = new FakeScanner(profile, offloaded).worstLatency();
+                System.out.println("scan mode " + profile.getScanMode()
+                        + (offloaded ? ", offloaded" : ", not offloaded")
+                        + ": report delay " + profile.getReportDelayMillis(offloaded)
+                        + " ms, worst case " + predicted + " ms, fake scanner " + measured
+                        + " ms");
+
+                // The prediction leaves out the wait for the first advertisement in a window.
+                final String message = profile.describe(offloaded) + ", measured " + measured;
+                assertTrue(message, measured <= predicted + ADVERTISING_INTERVAL_MS);
+                assertTrue(message, measured >= predicted - ADVERTISING_INTERVAL_MS);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Correlates the acknowledgements of a BLE-IR bridge with the writes they confirm.
+ *
+ * A bridge that notifies on the remote control command characteristic speaks the acknowledged
+ * form of the frame protocol: a write is a payload of whole 6-byte records followed by one
+ * sequence number byte, so the bridge tells both forms apart by the length.  Once the bridge
+ * has emitted the whole payload, it notifies the sequence number back; a notification may
+ * carry several numbers, one per byte.  A write that arrives with a number the bridge has
+ * just acknowledged is a retransmission whose acknowledgement was lost, and is acknowledged
+ * again without emitting it twice.
+ *
+ * Sequence numbers roll over after {@code 256}.  At most half of them are in use at once, so a
+ * number is not handed out again while the bridge may still take it for a retransmission.
+ * The tracker hands out the numbers and arms a timeout once the write is on its way.  A write
+ * that is not acknowledged in time is retransmitted with the same number, up to
+ * {@code maxRetransmissions} times, and reported as unacknowledged after that.  The timeout
+ * accounts for the IR time of the writes before it, since the bridge emits one payload after
+ * the other.
+ *
+ * Every sequence number ends in exactly one call of {@link Callback#onAcknowledged(long)} or
+ * {@link Callback#onUnacknowledged()}.  Callbacks are made without the lock held.
+ */
+class AckTracker {
+
+    /** The number of bytes an acknowledged write carries in addition to its payload. */
+    static final int SEQUENCE_LENGTH = 1;
+
+    private static final int SEQUENCE_COUNT = 256;
+    private static final int WINDOW = SEQUENCE_COUNT / 2;
+
+    /**
+     * The write a sequence number was handed out for.
+     */
+    interface Callback {
+        /**
+         * The bridge emitted the write.
+         *
+         * @param latencyNanos Time from the first transmission to the acknowledgement.
+         */
+        void onAcknowledged(long latencyNanos);
+
+        /**
+         * The acknowledgement did not arrive in time.
+         *
+         * @return Return true if the write was queued again with the same sequence number;
+         *         {@link #onSent(int, long)} is expected once it is on its way.
+         */
+        boolean retransmit();
+
+        /**
+         * The write failed, or was not acknowledged after the last retransmission.
+         */
+        void onUnacknowledged();
+    }
+
+    private static class Entry {
+        private final Callback mCallback;
+        private long mSentNanos;
+        private int mRetransmissions;
+        private ScheduledFuture<?> mTimeout;
+
+        private Entry(Callback callback) {
+            mCallback = callback;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mTimeoutNanos;
+    private final int mMaxRetransmissions;
+
+    // Guarded by this.
+    private final Entry[] mEntries = new Entry[SEQUENCE_COUNT];
+    private int mNextSequence;
+    private int mOutstanding;
+    // The time the bridge is expected to be done with the IR of all writes sent so far.
+    private long mEmitDoneNanos;
+    private long mAcknowledgedCount;
+    private long mRetransmittedCount;
+    private long mUnacknowledgedCount;
+    private long mUnmatchedCount;
+
+    /**
+     * @param scheduler Executor used to run the timeouts.
+     * @param timeoutMillis Time the bridge gets for an acknowledgement in addition to the IR
+     *                      time of the write.
+     * @param maxRetransmissions Number of times a write is retransmitted at most.
+     */
+    AckTracker(ScheduledExecutorService scheduler, long timeoutMillis, int maxRetransmissions) {
+        mScheduler = scheduler;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        mMaxRetransmissions = maxRetransmissions;
+    }
+
+    /**
+     * Hands out the next free sequence number.
+     *
+     * @return The sequence number, or -1 if too many writes await their acknowledgement.
+     */
+    synchronized int allocate(Callback callback) {
+        if (mOutstanding >= WINDOW) {
+            return -1;
+        }
+        while (mEntries[mNextSequence] != null) {
+            mNextSequence = (mNextSequence + 1) % SEQUENCE_COUNT;
+        }
+        final int sequence = mNextSequence;
+        mNextSequence = (mNextSequence + 1) % SEQUENCE_COUNT;
+        mEntries[sequence] = new Entry(callback);
+        mOutstanding++;
+        return sequence;
+    }
+
+    /**
+     * Arms the timeout of a write the stack has taken, for the first time or as a
+     * retransmission.
+     *
+     * @param emitMillis The time the bridge needs to emit the write.
+     */
+    synchronized void onSent(final int sequence, long emitMillis) {
+        final Entry entry = mEntries[sequence];
+        if (entry == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (entry.mSentNanos == 0) {
+            entry.mSentNanos = now;
+        }
+        if (mEmitDoneNanos - now < 0) {
+            mEmitDoneNanos = now;
+        }
+        mEmitDoneNanos += TimeUnit.MILLISECONDS.toNanos(emitMillis);
+        cancelTimeout(entry);
+        entry.mTimeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimeout(sequence, entry);
+            }
+        }, mEmitDoneNanos - now + mTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Completes the writes whose sequence numbers the bridge notified.  Numbers that are not
+     * outstanding, e.g. a second acknowledgement of a retransmitted write, are ignored.
+     */
+    void onNotification(byte[] value) {
+        final long now = System.nanoTime();
+        for (byte sequence : value) {
+            final Entry entry = remove(sequence & 0xFF);
+            if (entry == null) {
+                synchronized (this) {
+                    mUnmatchedCount++;
+                }
+                continue;
+            }
+            synchronized (this) {
+                mAcknowledgedCount++;
+            }
+            entry.mCallback.onAcknowledged(entry.mSentNanos == 0 ? -1 : now - entry.mSentNanos);
+        }
+    }
+
+    /**
+     * Gives up on a write that did not reach the bridge, e.g. because the stack refused it.
+     */
+    void release(int sequence) {
+        final Entry entry = remove(sequence);
+        if (entry != null) {
+            unacknowledged(entry);
+        }
+    }
+
+    /**
+     * Gives up on all outstanding writes, e.g. because the link went down.
+     */
+    void clear() {
+        final List<Entry> released = new ArrayList<>();
+        synchronized (this) {
+            for (int sequence = 0; sequence < SEQUENCE_COUNT; sequence++) {
+                final Entry entry = mEntries[sequence];
+                if (entry != null) {
+                    cancelTimeout(entry);
+                    mEntries[sequence] = null;
+                    released.add(entry);
+                }
+            }
+            mOutstanding = 0;
+            mEmitDoneNanos = 0;
+        }
+        for (Entry entry : released) {
+            unacknowledged(entry);
+        }
+    }
+
+    /**
+     * @return The number of writes awaiting their acknowledgement.
+     */
+    synchronized int getOutstanding() {
+        return mOutstanding;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AckTracker{outstanding=" + mOutstanding
+                + ", acknowledged=" + mAcknowledgedCount
+                + ", retransmitted=" + mRetransmittedCount
+                + ", unacknowledged=" + mUnacknowledgedCount
+                + ", unmatched=" + mUnmatchedCount
+                + "}";
+    }
+
+    private void onTimeout(int sequence, Entry entry) {
+        final boolean retry;
+        synchronized (this) {
+            if (mEntries[sequence] != entry || entry.mTimeout == null) {
+                return;
+            }
+            entry.mTimeout = null;
+            retry = entry.mRetransmissions < mMaxRetransmissions;
+            if (retry) {
+                entry.mRetransmissions++;
+            }
+        }
+        if (retry && entry.mCallback.retransmit()) {
+            synchronized (this) {
+                mRetransmittedCount++;
+            }
+            return;
+        }
+        release(sequence);
+    }
+
+    private synchronized Entry remove(int sequence) {
+        final Entry entry = mEntries[sequence];
+        if (entry != null) {
+            cancelTimeout(entry);
+            mEntries[sequence] = null;
+            mOutstanding--;
+        }
+        return entry;
+    }
+
+    private void unacknowledged(Entry entry) {
+        synchronized (this) {
+            mUnacknowledgedCount++;
+        }
+        entry.mCallback.onUnacknowledged();
+    }
+
+    // Must be called with the lock held.
+    private static void cancelTimeout(Entry entry) {
+        if (entry.mTimeout != null) {
+            entry.mTimeout.cancel(false);
+            entry.mTimeout = null;
+        }
+    }
+}
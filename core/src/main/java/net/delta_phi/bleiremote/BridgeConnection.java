@@ -0,0 +1,1061 @@
+package net.delta_phi.bleiremote;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection to one BLE-IR bridge, managed by {@code BluetoothLeService}.
+ *
+ * Every connection owns its {@link GattTransport}, GATT operation queue, remote control handle,
+ * MTU and reconnect supervisor, so commands to different bridges never wait for each other.
+ * Events are posted to the service's event bus together with the address of the bridge.
+ *
+ * The scheduler a connection is created with is its GATT thread, see
+ * {@link #newGattThread(String)}.  Every call into the transport is made there: the methods
+ * of this class hand their work over to it and return right away, and the GATT callbacks,
+ * which arrive on threads of the transport, are handed over in the order they arrive.  The
+ * state of the connection is only changed on the GATT thread, so callbacks and commands never
+ * race, and a busy main thread cannot delay a command.
+ *
+ * The class only depends on {@link GattTransport} and plain Java, so it runs on any JVM, e.g.
+ * against a {@link SimulatedGattPeer} in the benchmark.  Which key frames are step or urgent
+ * commands is told by the {@link CommandClasses} it is created with.
+ *
+ * If the bridge acknowledges frames, see {@link AckTracker}, a key frame or macro payload
+ * completes once the bridge reports it emitted, not once the stack took the write, and is
+ * retransmitted if that report does not come.
+ */
+class BridgeConnection {
+    private final static String TAG = BridgeConnection.class.getSimpleName();
+
+    // Time after which a GATT operation without a completion callback is considered lost.
+    private static final long OPERATION_TIMEOUT_MS = 1000;
+    // Number of writes without response that may be handed to the stack at once.  Stacks that
+    // only accept one write at a time refuse the excess, and the queue retries it in order.
+    private static final int WRITE_NO_RESPONSE_CREDITS = 4;
+
+    // ATT MTU of the current connection; writes carry at most MTU - 3 bytes of payload.
+    private static final int DEFAULT_MTU = 23;
+    private static final int PREFERRED_MTU = 185;
+    private static final int ATT_WRITE_HEADER_LENGTH = 3;
+
+    // Brings the link back when it drops without being released.
+    private static final long RECONNECT_INITIAL_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 8000;
+    private static final long RECONNECT_ATTEMPT_TIMEOUT_MS = 10000;
+    private static final int RECONNECT_MAX_ATTEMPTS = 6;
+
+    // Key frames sent before the remote control characteristic is known are held for the
+    // connection to come up.  Single key presses go stale quickly, macros less so.
+    private static final int PENDING_FRAME_CAPACITY = 16;
+    private static final long KEY_FRAME_TTL_MS = 1500;
+    private static final long MACRO_FRAME_TTL_MS = 5000;
+    // Key frames waiting in the operation queue, at most.  When the link cannot keep up, the
+    // oldest one is dropped, so a new press is sent after at most this many others.  A full
+    // frame buffer still fits when the link comes up.
+    private static final int MAX_QUEUED_KEY_FRAMES = PENDING_FRAME_CAPACITY;
+
+    // Time the bridge gets to acknowledge a frame, on top of the time it takes to emit it and
+    // the frames before it.
+    private static final long ACK_TIMEOUT_MS = 1000;
+    private static final int ACK_MAX_RETRANSMISSIONS = 2;
+
+    static final int PRIORITY_UNKNOWN = -1;
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+
+    private final static UUID UUID_GENERIC_ATTRIBUTE_SERVICE =
+            UUID.fromString(SampleGattAttributes.GENERIC_ATTRIBUTE_SERVICE);
+    private final static UUID UUID_DATABASE_HASH =
+            UUID.fromString(SampleGattAttributes.DATABASE_HASH);
+    private final static UUID UUID_HEART_RATE_MEASUREMENT =
+            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+
+    private final String mAddress;
+    private final GattTransport.Factory mTransportFactory;
+    private final ScheduledExecutorService mScheduler;
+    private final GattEventBus mEventBus;
+    private final GattAttributeCache mAttributeCache;
+    private final CommandMetrics mMetrics;
+    private final CommandClasses mCommandClasses;
+    private final GattOperationQueue mOperationQueue;
+    private final PendingFrameBuffer mPendingFrames;
+    private final ReconnectSupervisor mReconnectSupervisor;
+    private final AckTracker mAckTracker;
+
+    private volatile GattTransport mTransport;
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile RemoteControlHandle mRemoteControlHandle;
+    private volatile int mMtu = DEFAULT_MTU;
+    // True once the bridge was asked to acknowledge the frames of this connection.
+    private volatile boolean mAcknowledged;
+
+    // The priority the service wants for this link, and the one last requested from the stack.
+    private volatile int mDesiredPriority = GattTransport.CONNECTION_PRIORITY_BALANCED;
+    private volatile int mConnectionPriority = PRIORITY_UNKNOWN;
+
+    // Makes the services of a new connection usable: reuses the services of the previous
+    // connection if the Database Hash shows they did not change, discovers them otherwise.
+    private final AtomicBoolean mServiceResolutionStarted = new AtomicBoolean();
+    private final Runnable mResolveServices = new Runnable() {
+        @Override
+        public void run() {
+            final GattTransport transport = mTransport;
+            if (transport == null || mConnectionState != STATE_CONNECTED
+                    || !mServiceResolutionStarted.compareAndSet(false, true)) {
+                return;
+            }
+            final GattTransport.Characteristic databaseHash = findDatabaseHash(transport);
+            if (databaseHash != null && mDatabaseHash != null) {
+                mValidatingDatabaseHash = true;
+                if (transport.readCharacteristic(databaseHash)) {
+                    return;
+                }
+                mValidatingDatabaseHash = false;
+            }
+            discoverServices(transport);
+        }
+    };
+
+    // Database Hash of the services the current handle was resolved from, if the device
+    // has one.
+    private volatile byte[] mDatabaseHash;
+    private volatile boolean mValidatingDatabaseHash;
+
+    // Layout of the device from earlier connections.  If it lacks the remote control
+    // characteristic, key frames are refused instead of being buffered.
+    private volatile GattAttributeCache.Layout mCachedLayout;
+
+    BridgeConnection(String address, GattTransport.Factory transportFactory,
+                     ScheduledExecutorService scheduler, GattEventBus eventBus,
+                     GattAttributeCache attributeCache, CommandMetrics metrics,
+                     CommandClasses commandClasses) {
+        mAddress = address;
+        mTransportFactory = transportFactory;
+        mScheduler = scheduler;
+        mEventBus = eventBus;
+        mAttributeCache = attributeCache;
+        mMetrics = metrics;
+        mCommandClasses = commandClasses;
+        mOperationQueue = new GattOperationQueue(scheduler, OPERATION_TIMEOUT_MS,
+                WRITE_NO_RESPONSE_CREDITS, MAX_QUEUED_KEY_FRAMES);
+        mPendingFrames = new PendingFrameBuffer(scheduler, PENDING_FRAME_CAPACITY);
+        mAckTracker = new AckTracker(scheduler, ACK_TIMEOUT_MS, ACK_MAX_RETRANSMISSIONS);
+        mReconnectSupervisor = new ReconnectSupervisor(scheduler,
+                new ReconnectSupervisor.Reconnector() {
+                    @Override
+                    public boolean reconnect(boolean background) {
+                        return reconnectGatt(background);
+                    }
+
+                    @Override
+                    public void cancelReconnect() {
+                        final GattTransport transport = mTransport;
+                        if (transport != null) {
+                            transport.disconnect();
+                        }
+                    }
+                },
+                RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, RECONNECT_ATTEMPT_TIMEOUT_MS,
+                RECONNECT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Creates the GATT thread for a set of connections.  Once shut down, the thread still runs
+     * the work handed to it before, e.g. closing the connections, but no delayed work such as
+     * timeouts.  Work handed to it afterwards, e.g. a late GATT callback, is dropped.
+     *
+     * @param name The name of the thread.
+     */
+    static ScheduledExecutorService newGattThread(final String name) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name);
+                    }
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    // Implements callback methods for GATT events that the app cares about.  For example,
+    // connection change and services discovered.  Each event is handed to the GATT thread.
+    private final GattTransport.Callback mGattCallback = new GattTransport.Callback() {
+        @Override
+        public void onConnectionStateChange(int status, final int newState) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final int status) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(status);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final int mtu, final int status) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleMtuChanged(mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final UUID characteristic, final byte[] value,
+                                         final int status) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleCharacteristicRead(characteristic, value, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, final int status) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mOperationQueue.onOperationComplete(status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID descriptor, final int status) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (status != GattTransport.GATT_SUCCESS) {
+                        GattLog.w(TAG, "onDescriptorWrite received: " + status);
+                        mMetrics.recordStatus(status);
+                    }
+                    mOperationQueue.onOperationComplete(status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final UUID characteristic, final byte[] value) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleCharacteristicChanged(characteristic, value);
+                }
+            });
+        }
+    };
+
+    private void handleConnectionStateChange(int newState) {
+        final GattTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        if (newState == GattTransport.STATE_CONNECTED) {
+            mConnectionState = STATE_CONNECTED;
+            mMetrics.recordConnected(mReconnectSupervisor.onConnected());
+            mEventBus.postConnected(mAddress);
+            GattLog.i(TAG, "Connected to GATT server " + mAddress);
+            // Negotiates a larger MTU first, so that the services are resolved and the first
+            // command is sent with the final link parameters.  Service resolution starts once
+            // the MTU exchange completes, or right away if it can't be made.
+            mServiceResolutionStarted.set(false);
+            if (transport.requestMtu(PREFERRED_MTU)) {
+                mScheduler.schedule(mResolveServices, OPERATION_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS);
+            } else {
+                mResolveServices.run();
+            }
+
+        } else if (newState == GattTransport.STATE_DISCONNECTED) {
+            mConnectionState = STATE_DISCONNECTED;
+            invalidateRemoteControlHandle();
+            mOperationQueue.setReady(false);
+            stopAcknowledgements();
+            mMtu = DEFAULT_MTU;
+            mConnectionPriority = PRIORITY_UNKNOWN;
+            mValidatingDatabaseHash = false;
+            GattLog.i(TAG, "Disconnected from GATT server " + mAddress);
+            mMetrics.recordDisconnected();
+            mEventBus.postDisconnected(mAddress);
+            mReconnectSupervisor.onConnectionLost();
+        }
+    }
+
+    private void handleServicesDiscovered(int status) {
+        final GattTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        if (status == GattTransport.GATT_SUCCESS) {
+            onServicesReady(transport);
+            // Remember the Database Hash, so the next reconnect can skip discovery.  The
+            // layout is cached once the hash is known.
+            final GattTransport.Characteristic databaseHash = findDatabaseHash(transport);
+            if (databaseHash != null) {
+                readCharacteristic(databaseHash);
+            } else {
+                cacheLayout(GattAttributeCache.Layout.of(transport.getServices(), null));
+            }
+        } else {
+            GattLog.w(TAG, "onServicesDiscovered received: " + status);
+            mMetrics.recordStatus(status);
+        }
+    }
+
+    private void handleMtuChanged(int mtu, int status) {
+        if (status == GattTransport.GATT_SUCCESS) {
+            mMtu = mtu;
+            GattLog.i(TAG, "MTU of " + mAddress + " changed to " + mtu);
+        } else {
+            GattLog.w(TAG, "onMtuChanged received: " + status);
+        }
+        mResolveServices.run();
+    }
+
+    private void handleCharacteristicRead(UUID uuid, byte[] value, int status) {
+        final GattTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        final boolean isDatabaseHash = UUID_DATABASE_HASH.equals(uuid);
+        if (isDatabaseHash && mValidatingDatabaseHash) {
+            mValidatingDatabaseHash = false;
+            if (status == GattTransport.GATT_SUCCESS && Arrays.equals(mDatabaseHash, value)) {
+                GattLog.i(TAG, "Database Hash unchanged, skipping service discovery.");
+                onServicesReady(transport);
+            } else {
+                discoverServices(transport);
+            }
+            return;
+        }
+        if (status == GattTransport.GATT_SUCCESS) {
+            if (isDatabaseHash) {
+                mDatabaseHash = value;
+                cacheLayout(GattAttributeCache.Layout.of(transport.getServices(),
+                        mDatabaseHash));
+            }
+            postValue(uuid, value);
+        }
+        mOperationQueue.onOperationComplete(status);
+    }
+
+    // Acknowledgements of the bridge arrive on the command characteristic; other values go to
+    // the listeners.
+    private void handleCharacteristicChanged(UUID uuid, byte[] value) {
+        if (mAcknowledged && RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND.equals(uuid)) {
+            if (value != null) {
+                mAckTracker.onNotification(value);
+            }
+            return;
+        }
+        postValue(uuid, value);
+    }
+
+    private void discoverServices(GattTransport transport) {
+        mDatabaseHash = null;
+        GattLog.i(TAG, "Attempting to start service discovery:" + transport.discoverServices());
+    }
+
+    // Resolves the remote control handle from the services of transport, opens the operation
+    // queue, asks the bridge for acknowledgements and sends the frames buffered meanwhile.
+    private void onServicesReady(GattTransport transport) {
+        mRemoteControlHandle = RemoteControlHandle.resolve(transport);
+        applyConnectionPriority();
+        mOperationQueue.setReady(true);
+        if (mRemoteControlHandle == null) {
+            GattLog.w(TAG, "Remote control characteristic not found on " + mAddress);
+            mPendingFrames.clear();
+        } else {
+            startAcknowledgements(transport, mRemoteControlHandle);
+            flushPendingFrames();
+        }
+        mEventBus.postServicesDiscovered(mAddress);
+    }
+
+    // Enables notification on the command characteristic if the bridge acknowledges frames.
+    // Frames issued before the descriptor write completed are sent without a sequence number.
+    private void startAcknowledgements(GattTransport transport,
+                                       final RemoteControlHandle handle) {
+        final GattTransport.Descriptor descriptor = handle.getClientConfiguration();
+        if (descriptor == null
+                || !transport.setCharacteristicNotification(handle.getCommandCharacteristic(),
+                        true)) {
+            return;
+        }
+        enqueueNotificationEnable(descriptor, new Runnable() {
+            @Override
+            public void run() {
+                if (handle.isValid()) {
+                    mAcknowledged = true;
+                    GattLog.d(TAG, "Frames to " + mAddress + " are acknowledged.");
+                }
+            }
+        });
+    }
+
+    // Reports the frames still waiting for their acknowledgement as unacknowledged.
+    private void stopAcknowledgements() {
+        mAcknowledged = false;
+        mAckTracker.clear();
+    }
+
+    // Moves the buffered frames to the operation queue, in order, if the remote control
+    // characteristic is known.
+    private void flushPendingFrames() {
+        final RemoteControlHandle handle = mRemoteControlHandle;
+        if (handle == null || !handle.isValid()) {
+            return;
+        }
+        final List<PendingFrameBuffer.Frame> frames = mPendingFrames.drain();
+        final long now = System.nanoTime();
+        for (PendingFrameBuffer.Frame frame : frames) {
+            mMetrics.recordBuffered(now - frame.getAddedNanos());
+            enqueueFrame(handle, frame.getValue(), frame.isKeyFrame(), frame.getOnComplete());
+        }
+        if (!frames.isEmpty()) {
+            GattLog.d(TAG, "Sent " + frames.size() + " buffered frames to " + mAddress);
+        }
+    }
+
+    // Stores the discovered layout unless the cached one is known to be the same.
+    private void cacheLayout(GattAttributeCache.Layout layout) {
+        final GattAttributeCache.Layout cached = mCachedLayout;
+        if (cached != null && layout.getDatabaseHash() != null
+                && Arrays.equals(layout.getDatabaseHash(), cached.getDatabaseHash())) {
+            GattLog.d(TAG, "Cached GATT layout of " + mAddress + " is up to date.");
+            return;
+        }
+        if (cached != null && !cached.sameAttributesAs(layout)) {
+            GattLog.i(TAG, "GATT layout of " + mAddress + " changed.");
+        }
+        mCachedLayout = layout;
+        mAttributeCache.put(mAddress, layout);
+    }
+
+    private static GattTransport.Characteristic findDatabaseHash(GattTransport transport) {
+        final GattTransport.Service service = transport.getService(UUID_GENERIC_ATTRIBUTE_SERVICE);
+        return service != null ? service.getCharacteristic(UUID_DATABASE_HASH) : null;
+    }
+
+    private void postValue(UUID uuid, byte[] value) {
+        if (GattLog.isLoggable(TAG, GattLog.VERBOSE)) {
+            GattLog.v(TAG, mAddress + " " + uuid + ": "
+                    + CharacteristicValues.describe(uuid, value));
+        }
+        mEventBus.postValue(mAddress, uuid, value);
+    }
+
+    String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Connects to the bridge, reusing the transport of an earlier connection if there is
+     * one.  Does nothing if the bridge is connected or being connected already.  A failure
+     * to start connecting is logged.
+     */
+    void connect() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                openConnection();
+            }
+        });
+    }
+
+    private void openConnection() {
+        if (mConnectionState != STATE_DISCONNECTED) {
+            // Still open from an earlier screen, e.g. before a rotation.
+            return;
+        }
+        final GattTransport transport = mTransport;
+        if (transport != null) {
+            GattLog.d(TAG, "Trying to use an existing transport for connection.");
+            if (transport.connect()) {
+                mConnectionState = STATE_CONNECTING;
+            } else {
+                GattLog.w(TAG, "Unable to connect to " + mAddress);
+            }
+            return;
+        }
+
+        mDatabaseHash = null;
+        mCachedLayout = mAttributeCache.get(mAddress);
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mTransport = mTransportFactory.open(mAddress, false, mGattCallback);
+        if (mTransport == null) {
+            GattLog.w(TAG, "Device not found.  Unable to connect.");
+            return;
+        }
+        GattLog.d(TAG, "Trying to create a new connection to " + mAddress);
+        mConnectionState = STATE_CONNECTING;
+    }
+
+    // Connection attempt made by the reconnect supervisor.  Reuses the transport of the lost
+    // connection, which keeps its services, so they can be validated against the
+    // Database Hash instead of being discovered again.
+    private boolean reconnectGatt(boolean background) {
+        final GattTransport transport = mTransport;
+        if (transport != null) {
+            GattLog.d(TAG, "Reconnecting with the existing transport.");
+            if (!transport.connect()) {
+                return false;
+            }
+        } else {
+            GattLog.d(TAG, "Reconnecting with a new connection, autoConnect=" + background);
+            mTransport = mTransportFactory.open(mAddress, background, mGattCallback);
+            if (mTransport == null) {
+                return false;
+            }
+        }
+        mConnectionState = STATE_CONNECTING;
+        return true;
+    }
+
+    void setBackgroundReconnectEnabled(boolean enabled) {
+        mReconnectSupervisor.setBackgroundModeEnabled(enabled);
+    }
+
+    /**
+     * Disconnects the link or cancels a pending connection.  A connection released this way is
+     * not brought back automatically.
+     */
+    void disconnect() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReconnectSupervisor.stop();
+                mPendingFrames.clear();
+                final GattTransport transport = mTransport;
+                if (transport != null) {
+                    transport.disconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the transport.  The connection can be opened again with
+     * {@link #connect()}.
+     */
+    void close() {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeTransport();
+            }
+        });
+    }
+
+    private void closeTransport() {
+        mReconnectSupervisor.stop();
+        mPendingFrames.clear();
+        final GattTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        invalidateRemoteControlHandle();
+        mOperationQueue.setReady(false);
+        stopAcknowledgements();
+        mConnectionState = STATE_DISCONNECTED;
+        mConnectionPriority = PRIORITY_UNKNOWN;
+        GattLog.d(TAG, "Closing connection, " + this);
+        transport.close();
+        mTransport = null;
+    }
+
+    boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
+    }
+
+    /**
+     * @return Return true if no GATT operation is pending and no frame awaits its
+     *         acknowledgement, so the connection can be closed without dropping a command.
+     */
+    boolean isIdle() {
+        return mOperationQueue.getDepth() == 0 && mPendingFrames.size() == 0
+                && mAckTracker.getOutstanding() == 0;
+    }
+
+    /**
+     * Queues a read.  See {@code BluetoothLeService#readCharacteristic}.
+     */
+    void readCharacteristic(final GattTransport.Characteristic characteristic) {
+        final GattOperationQueue.Operation read = new GattOperationQueue.Operation() {
+            @Override
+            boolean execute() {
+                final GattTransport transport = mTransport;
+                return transport != null && transport.readCharacteristic(characteristic);
+            }
+        };
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                mOperationQueue.enqueue(read);
+            }
+        });
+    }
+
+    /**
+     * Queues a write of {@code value} to {@code characteristic}.
+     */
+    void writeCharacteristic(final GattTransport.Characteristic characteristic,
+                             final byte[] value) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                enqueueWrite(characteristic, value, getWriteType(characteristic), false, false,
+                        GattOperationQueue.LANE_INTERACTIVE, null);
+            }
+        });
+    }
+
+    /**
+     * Queues a key frame for the remote control command characteristic.  Until the
+     * characteristic is resolved, in any connection state, the frame is buffered for
+     * {@code KEY_FRAME_TTL_MS} and sent in order once it is.
+     *
+     * @return Return true if the frame was queued, false if the cached layout of the bridge
+     *         shows it has no remote control characteristic.
+     */
+    boolean sendFrame(byte[] frame, Runnable onComplete) {
+        return sendFrame(frame, true, KEY_FRAME_TTL_MS, onComplete);
+    }
+
+    // Queues a key frame, or a macro payload if keyFrame is false.  The length does not tell
+    // them apart: the last payload of a macro may hold a single record.
+    private boolean sendFrame(final byte[] frame, final boolean keyFrame, final long ttlMillis,
+                              final Runnable onComplete) {
+        final RemoteControlHandle handle = mRemoteControlHandle;
+        final GattAttributeCache.Layout layout = mCachedLayout;
+        if ((handle == null || !handle.isValid()) && layout != null && layout.getProperties(
+                RemoteControlHandle.UUID_REMOTE_CONTROL_SERVICE,
+                RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND) == -1) {
+            GattLog.w(TAG, "Remote control characteristic of " + mAddress
+                    + " not available, dropping frame");
+            return false;
+        }
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                queueFrame(frame, keyFrame, ttlMillis, onComplete);
+            }
+        });
+        return true;
+    }
+
+    // Queues the frame if the remote control characteristic is resolved, buffers it
+    // otherwise.  Runs on the GATT thread, which also flushes the buffer.
+    private void queueFrame(byte[] frame, boolean keyFrame, long ttlMillis,
+                            Runnable onComplete) {
+        final RemoteControlHandle handle = mRemoteControlHandle;
+        if (handle != null && handle.isValid()) {
+            enqueueFrame(handle, frame, keyFrame, onComplete);
+        } else {
+            mPendingFrames.add(frame, keyFrame, ttlMillis, onComplete);
+        }
+    }
+
+    /**
+     * Queues a macro, packed into as few writes as the current MTU allows, leaving room for
+     * a sequence number.  The number of writes and the time until the last one completed are
+     * logged.
+     *
+     * @param onComplete Run on the GATT thread once the last write completed, may be null.
+     *
+     * @return Return true if the macro was queued.
+     */
+    boolean sendMacro(final Macro macro, final Runnable onComplete) {
+        final List<byte[]> payloads = macro.pack(mMtu - ATT_WRITE_HEADER_LENGTH
+                - AckTracker.SEQUENCE_LENGTH);
+        final long start = System.nanoTime();
+        final Runnable onPayloadComplete = new Runnable() {
+            private final AtomicInteger mRemaining = new AtomicInteger(payloads.size());
+
+            @Override
+            public void run() {
+                if (mRemaining.decrementAndGet() == 0) {
+                    GattLog.d(TAG, "Macro " + macro.getName() + " to " + mAddress + ": "
+                            + macro.getFrameCount() + " frames in " + payloads.size()
+                            + " writes, " + (System.nanoTime() - start) / 1000000 + " ms, MTU "
+                            + mMtu + ", interval ~" + getConnectionIntervalMillis() + " ms");
+                    if (onComplete != null) {
+                        onComplete.run();
+                    }
+                }
+            }
+        };
+        for (byte[] payload : payloads) {
+            if (!sendFrame(payload, false, MACRO_FRAME_TTL_MS, onPayloadComplete)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enables or disables notification on a characteristic; see
+     * {@code BluetoothLeService#setCharacteristicNotification}.
+     */
+    void setCharacteristicNotification(final GattTransport.Characteristic characteristic,
+                                       final boolean enabled) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                enableNotification(characteristic, enabled);
+            }
+        });
+    }
+
+    private void enableNotification(GattTransport.Characteristic characteristic,
+                                    boolean enabled) {
+        final GattTransport transport = mTransport;
+        if (transport == null) {
+            return;
+        }
+        transport.setCharacteristicNotification(characteristic, enabled);
+
+        // This is specific to Heart Rate Measurement.
+        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+            enqueueNotificationEnable(characteristic.getDescriptor(
+                    RemoteControlHandle.UUID_CLIENT_CHARACTERISTIC_CONFIG), null);
+        }
+    }
+
+    // Queues the write that enables notification in a Client Characteristic Configuration
+    // descriptor.  onEnabled, if not null, runs once the write succeeded.
+    private void enqueueNotificationEnable(final GattTransport.Descriptor descriptor,
+                                           final Runnable onEnabled) {
+        mOperationQueue.enqueue(new GattOperationQueue.Operation() {
+            @Override
+            boolean execute() {
+                final GattTransport transport = mTransport;
+                if (transport == null) {
+                    return false;
+                }
+                return transport.writeDescriptor(descriptor,
+                        GattTransport.Descriptor.ENABLE_NOTIFICATION_VALUE);
+            }
+
+            @Override
+            void onComplete(int status) {
+                if (status == GattTransport.GATT_SUCCESS && onEnabled != null) {
+                    onEnabled.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The discovered services, or null if there is no transport.
+     */
+    List<GattTransport.Service> getSupportedGattServices() {
+        final GattTransport transport = mTransport;
+        return transport != null ? transport.getServices() : null;
+    }
+
+    /**
+     * Sets the connection priority the link should run at.  It is requested right away if the
+     * link is up, otherwise once the services are resolved.
+     */
+    void setConnectionPriority(int priority) {
+        mDesiredPriority = priority;
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                applyConnectionPriority();
+            }
+        });
+    }
+
+    private void applyConnectionPriority() {
+        final int priority = mDesiredPriority;
+        final GattTransport transport = mTransport;
+        if (transport == null || mConnectionState != STATE_CONNECTED
+                || priority == mConnectionPriority) {
+            return;
+        }
+        if (transport.requestConnectionPriority(priority)) {
+            mConnectionPriority = priority;
+            GattLog.d(TAG, "Connection priority of " + mAddress + " set to " + priority);
+        }
+    }
+
+    int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return The approximate connection interval.  The platform does not report the interval
+     *         the peer accepted, so this is the middle of the range requested for the current
+     *         connection priority.
+     */
+    float getConnectionIntervalMillis() {
+        switch (mConnectionPriority) {
+            case GattTransport.CONNECTION_PRIORITY_HIGH:
+                return 11.25f;
+            case GattTransport.CONNECTION_PRIORITY_LOW_POWER:
+                return 112.5f;
+            default:
+                return 40f;
+        }
+    }
+
+    /**
+     * @return Issue-to-callback latency of the most recently completed GATT operation.
+     */
+    long getLastLatencyNanos() {
+        return mOperationQueue.getLastLatencyNanos();
+    }
+
+    /**
+     * @return Mean issue-to-callback latency of the GATT operations on this connection.
+     */
+    long getAverageLatencyNanos() {
+        return mOperationQueue.getAverageLatencyNanos();
+    }
+
+    @Override
+    public String toString() {
+        return "BridgeConnection{" + mAddress
+                + ", state=" + mConnectionState
+                + ", mtu=" + mMtu
+                + ", " + mOperationQueue
+                + ", " + mPendingFrames
+                + ", " + mAckTracker
+                + ", " + mReconnectSupervisor
+                + "}";
+    }
+
+    // Queues a write to the remote control command characteristic.  Key frames go to the
+    // interactive lane, or the urgent one for power and mute; macro payloads go to the
+    // background lane, whatever their length, and are never merged or dropped.
+    private void enqueueFrame(RemoteControlHandle handle, byte[] value, boolean keyFrame,
+                              Runnable onComplete) {
+        final int lane;
+        if (!keyFrame) {
+            lane = GattOperationQueue.LANE_BACKGROUND;
+        } else if (mCommandClasses.isUrgent(value)) {
+            lane = GattOperationQueue.LANE_URGENT;
+        } else {
+            lane = GattOperationQueue.LANE_INTERACTIVE;
+        }
+        enqueueWrite(handle.getCommandCharacteristic(), value, handle.getWriteType(), true,
+                keyFrame, lane, onComplete);
+    }
+
+    // Queues a write.  Frames may be acknowledged, and key frames may be merged and dropped
+    // under backpressure, see WriteOperation.
+    private void enqueueWrite(GattTransport.Characteristic target, byte[] value, int writeType,
+                              boolean frame, boolean keyFrame, int lane, Runnable onComplete) {
+        mOperationQueue.enqueue(new WriteOperation(target, value, writeType, frame, keyFrame,
+                lane, onComplete));
+    }
+
+    // A queued write.  Key frames for the remote control command characteristic may be
+    // dropped when the queue is full, and a step command, e.g. a volume step, absorbs the
+    // same step queued right behind it by sending its frame once more.  Digits and other
+    // commands are never merged.
+    //
+    // If the bridge acknowledges frames, a frame gets a sequence number when it is first
+    // issued and completes with the acknowledgement.  A retransmission queues the same
+    // operation again, with the same sequence number.
+    private class WriteOperation extends GattOperationQueue.Operation
+            implements AckTracker.Callback {
+        private final GattTransport.Characteristic mTarget;
+        private final int mWriteType;
+        private final boolean mFrame;
+        private final boolean mKeyFrame;
+        private final int mLane;
+        // Changed by coalesce() while the operation is pending, with the queue locked.
+        private byte[] mValue;
+        private Runnable mOnComplete;
+        // The sequence number and the value written with it, once issued to a bridge that
+        // acknowledges frames.
+        private int mSequence = -1;
+        private byte[] mSequencedValue;
+        // True once queued again by retransmit().  Only the first issue counts as a write in
+        // the metrics.
+        private boolean mRetransmitted;
+
+        WriteOperation(GattTransport.Characteristic target, byte[] value, int writeType,
+                       boolean frame, boolean keyFrame, int lane, Runnable onComplete) {
+            mTarget = target;
+            mValue = value;
+            mWriteType = writeType;
+            mFrame = frame;
+            mKeyFrame = keyFrame;
+            mLane = lane;
+            mOnComplete = onComplete;
+        }
+
+        @Override
+        boolean execute() {
+            final GattTransport transport = mTransport;
+            if (transport == null) {
+                return false;
+            }
+            if (mFrame && mAcknowledged && mSequence < 0) {
+                mSequence = mAckTracker.allocate(this);
+                if (mSequence >= 0) {
+                    mSequencedValue = Arrays.copyOf(mValue,
+                            mValue.length + AckTracker.SEQUENCE_LENGTH);
+                    mSequencedValue[mValue.length] = (byte) mSequence;
+                }
+            }
+            if (GattLog.isLoggable(TAG, GattLog.VERBOSE)) {
+                GattLog.v(TAG, mAddress + " " + mTarget.getUuid() + " <- "
+                        + CharacteristicValues.describe(mTarget.getUuid(), mValue)
+                        + (mSequence >= 0 ? " seq " + mSequence : ""));
+            }
+            return transport.writeCharacteristic(mTarget,
+                    mSequence >= 0 ? mSequencedValue : mValue, mWriteType);
+        }
+
+        @Override
+        boolean expectsResponse() {
+            return mWriteType != GattTransport.Characteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+
+        @Override
+        boolean isDroppable() {
+            return mKeyFrame;
+        }
+
+        @Override
+        int getLane() {
+            return mLane;
+        }
+
+        @Override
+        boolean coalesce(GattOperationQueue.Operation next) {
+            // A retransmission must carry what the bridge may already have emitted.
+            if (!mKeyFrame || mSequence >= 0 || !(next instanceof WriteOperation)) {
+                return false;
+            }
+            final WriteOperation write = (WriteOperation) next;
+            if (!write.mKeyFrame || write.mSequence >= 0 || write.mTarget != mTarget
+                    || !mCommandClasses.isStep(mValue)) {
+                return false;
+            }
+            final byte[] merged = IrEncoder.mergeRepetitions(mValue, write.mValue);
+            if (merged == null) {
+                return false;
+            }
+            mValue = merged;
+            mOnComplete = chain(mOnComplete, write.mOnComplete);
+            mMetrics.recordCoalesced();
+            return true;
+        }
+
+        @Override
+        void onComplete(int status) {
+            if (status != GattTransport.GATT_SUCCESS) {
+                GattLog.w(TAG, "Write to " + mTarget.getUuid() + " on " + mAddress
+                        + " failed: " + status);
+            }
+            if (!mRetransmitted) {
+                mMetrics.recordWrite(mLane, status, getQueuedNanos(), getLatencyNanos());
+                final long timeToFirstCommand = mReconnectSupervisor.onCommandCompleted();
+                if (timeToFirstCommand >= 0) {
+                    mMetrics.recordTimeToFirstCommand(timeToFirstCommand);
+                }
+            }
+            if (mSequence < 0) {
+                finish();
+            } else if (status == GattTransport.GATT_SUCCESS) {
+                mAckTracker.onSent(mSequence, Macro.getPlaybackMillis(mValue));
+            } else {
+                mAckTracker.release(mSequence);
+            }
+        }
+
+        @Override
+        public void onAcknowledged(long latencyNanos) {
+            mMetrics.recordAcknowledged(latencyNanos);
+            finish();
+        }
+
+        @Override
+        public boolean retransmit() {
+            if (!isConnected()) {
+                return false;
+            }
+            GattLog.d(TAG, "Retransmitting frame " + mSequence + " to " + mAddress);
+            mMetrics.recordRetransmitted();
+            mRetransmitted = true;
+            mOperationQueue.enqueue(this);
+            return true;
+        }
+
+        @Override
+        public void onUnacknowledged() {
+            GattLog.w(TAG, "Frame " + mSequence + " to " + mAddress + " was not acknowledged");
+            mMetrics.recordUnacknowledged();
+            finish();
+        }
+
+        private void finish() {
+            if (mOnComplete != null) {
+                mOnComplete.run();
+            }
+        }
+    }
+
+    private static Runnable chain(final Runnable first, final Runnable second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                first.run();
+                second.run();
+            }
+        };
+    }
+
+    private void invalidateRemoteControlHandle() {
+        final RemoteControlHandle handle = mRemoteControlHandle;
+        if (handle != null) {
+            handle.invalidate();
+            mRemoteControlHandle = null;
+        }
+    }
+
+    private static int getWriteType(GattTransport.Characteristic characteristic) {
+        if (RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND.equals(characteristic.getUuid())
+                && (characteristic.getProperties()
+                        & GattTransport.Characteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            return GattTransport.Characteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+        return GattTransport.Characteristic.WRITE_TYPE_DEFAULT;
+    }
+}
@@ -0,0 +1,19 @@
+package net.delta_phi.bleiremote;
+
+import java.util.UUID;
+
+/**
+ * Receives the raw values read from or notified by one characteristic.  Subscribed through
+ * {@code BluetoothLeService.LocalBinder} for a single characteristic UUID.
+ */
+interface CharacteristicValueListener {
+    /**
+     * @param address Address of the device the value came from.
+     * @param characteristic UUID of the characteristic.
+     * @param value The value as received.  The array is not copied; it must not be modified,
+     *              but may be kept, as every new value arrives in a new array.  Use
+     *              {@link CharacteristicValues#describe(UUID, byte[])} to format it for
+     *              display.
+     */
+    void onCharacteristicValue(String address, UUID characteristic, byte[] value);
+}
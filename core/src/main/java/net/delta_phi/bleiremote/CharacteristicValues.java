@@ -0,0 +1,85 @@
+package net.delta_phi.bleiremote;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Formats characteristic values for display.
+ *
+ * Decoders are registered per characteristic UUID; values of other characteristics are shown
+ * as hex.  Formatting only happens when a consumer, e.g. a debug log, asks for it, so
+ * receiving a value costs nothing beyond handing the raw array to its subscribers.
+ */
+final class CharacteristicValues {
+
+    /**
+     * Turns the raw value of one kind of characteristic into text.
+     */
+    interface Decoder {
+        String describe(byte[] value);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final Map<UUID, Decoder> DECODERS = new HashMap<>();
+
+    static {
+        // Heart Rate Measurement, parsed as per the profile specification:
+        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        DECODERS.put(UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT), new Decoder() {
+            @Override
+            public String describe(byte[] value) {
+                if (value.length < 2) {
+                    return toHex(value);
+                }
+                final boolean uint16 = (value[0] & 0x01) != 0;
+                if (uint16 && value.length < 3) {
+                    return toHex(value);
+                }
+                final int heartRate = uint16
+                        ? (value[1] & 0xFF) | (value[2] & 0xFF) << 8
+                        : value[1] & 0xFF;
+                return String.valueOf(heartRate);
+            }
+        });
+        DECODERS.put(RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND, new Decoder() {
+            @Override
+            public String describe(byte[] value) {
+                final String frame = IrEncoder.describe(value);
+                return frame != null ? frame : toHex(value);
+            }
+        });
+    }
+
+    private CharacteristicValues() {
+    }
+
+    /**
+     * @return The value formatted with the decoder registered for {@code characteristic}, or
+     *         as hex if there is none.
+     */
+    static String describe(UUID characteristic, byte[] value) {
+        if (value == null) {
+            return "";
+        }
+        final Decoder decoder = DECODERS.get(characteristic);
+        return decoder != null ? decoder.describe(value) : toHex(value);
+    }
+
+    /**
+     * @return The bytes of {@code value} as space separated hex pairs.
+     */
+    static String toHex(byte[] value) {
+        final char[] chars = new char[Math.max(0, value.length * 3 - 1)];
+        for (int i = 0; i < value.length; ++i) {
+            final int offset = i * 3;
+            chars[offset] = HEX_DIGITS[(value[i] >> 4) & 0x0F];
+            chars[offset + 1] = HEX_DIGITS[value[i] & 0x0F];
+            if (offset + 2 < chars.length) {
+                chars[offset + 2] = ' ';
+            }
+        }
+        return new String(chars);
+    }
+}
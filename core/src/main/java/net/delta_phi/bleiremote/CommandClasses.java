@@ -0,0 +1,35 @@
+package net.delta_phi.bleiremote;
+
+/**
+ * Sorts key frames into the command classes that decide how {@link BridgeConnection} queues
+ * them.  The app's remote control table knows which buttons step a value and which are
+ * urgent; frames of neither class are sent one by one in the interactive lane.
+ */
+interface CommandClasses {
+
+    /** No step and no urgent commands. */
+    CommandClasses NONE = new CommandClasses() {
+        @Override
+        public boolean isStep(byte[] frame) {
+            return false;
+        }
+
+        @Override
+        public boolean isUrgent(byte[] frame) {
+            return false;
+        }
+    };
+
+    /**
+     * @return Return true if the frame is a step command, i.e. several of them may be merged
+     *         into one with {@link IrEncoder#mergeRepetitions(byte[], byte[])}.  Repetitions
+     *         in the flags are ignored.
+     */
+    boolean isStep(byte[] frame);
+
+    /**
+     * @return Return true if the frame is an urgent command, i.e. it is sent ahead of queued
+     *         key presses and macros.  Repetitions in the flags are ignored.
+     */
+    boolean isUrgent(byte[] frame);
+}
@@ -0,0 +1,256 @@
+package net.delta_phi.bleiremote;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the key frames sent by the app, shared by all
+ * connections of {@code BluetoothLeService}.
+ *
+ * The path of a key press is split into five stages, each with its own histogram:
+ * <ul>
+ * <li>click to enqueue: from the input event to the frame being accepted by the service,
+ * <li>buffered: time spent in the {@link PendingFrameBuffer} while the link came up,
+ * <li>enqueue to write: time spent in the {@link GattOperationQueue} behind other operations,
+ * <li>write to ack: from issuing the write to its callback.  For writes without response the
+ * callback only means the local stack accepted the packet.
+ * <li>write to IR: from the write to the bridge acknowledging that it emitted the frame, for
+ * bridges that acknowledge frames, see {@link AckTracker}.
+ * </ul>
+ * In addition, the time from enqueue to ack is kept per lane of the operation queue, to show
+ * that urgent commands overtake routine traffic and macros yield to key presses.
+ *
+ * Everything is lock-free and may be recorded from any thread.  While disabled, every record
+ * method returns after reading one volatile field.
+ */
+class CommandMetrics {
+
+    private volatile boolean mEnabled;
+
+    private final LatencyHistogram mClickToEnqueue = new LatencyHistogram();
+    private final LatencyHistogram mBuffered = new LatencyHistogram();
+    private final LatencyHistogram mEnqueueToWrite = new LatencyHistogram();
+    private final LatencyHistogram mWriteToAck = new LatencyHistogram();
+    private final LatencyHistogram mWriteToEmit = new LatencyHistogram();
+    private final LatencyHistogram mReconnectToCommand = new LatencyHistogram();
+    private final LatencyHistogram[] mLaneLatency =
+            new LatencyHistogram[GattOperationQueue.LANE_COUNT];
+
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mFailedWrites = new AtomicLong();
+    private final AtomicLong mCoalescedWrites = new AtomicLong();
+    private final AtomicLong mAcknowledgedWrites = new AtomicLong();
+    private final AtomicLong mRetransmittedWrites = new AtomicLong();
+    private final AtomicLong mUnacknowledgedWrites = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mReconnects = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+    // Number of operations that completed with each failure status.
+    private final ConcurrentMap<Integer, AtomicLong> mStatusCounts = new ConcurrentHashMap<>();
+
+    CommandMetrics() {
+        for (int lane = 0; lane < mLaneLatency.length; lane++) {
+            mLaneLatency[lane] = new LatencyHistogram();
+        }
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void recordClickToEnqueue(long nanos) {
+        if (mEnabled) {
+            mClickToEnqueue.record(nanos);
+        }
+    }
+
+    void recordBuffered(long nanos) {
+        if (mEnabled) {
+            mBuffered.record(nanos);
+        }
+    }
+
+    /**
+     * Records a finished key frame write.
+     *
+     * @param lane The lane of the operation queue the write waited in.
+     * @param status The status the operation completed with.
+     * @param queuedNanos Time in the operation queue, or -1 if the write was never issued.
+     * @param latencyNanos Time from issuing the write to its callback, or -1.
+     */
+    void recordWrite(int lane, int status, long queuedNanos, long latencyNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        mWrites.incrementAndGet();
+        if (status != 0) {
+            mFailedWrites.incrementAndGet();
+            recordStatus(status);
+            return;
+        }
+        mEnqueueToWrite.record(queuedNanos);
+        mWriteToAck.record(latencyNanos);
+        mLaneLatency[lane].record(queuedNanos + latencyNanos);
+    }
+
+    /**
+     * Records a key frame merged into the one queued before it, i.e. a write saved.
+     */
+    void recordCoalesced() {
+        if (mEnabled) {
+            mCoalescedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a frame the bridge acknowledged.
+     *
+     * @param latencyNanos Time from its first write to the acknowledgement, or -1.
+     */
+    void recordAcknowledged(long latencyNanos) {
+        if (mEnabled) {
+            mAcknowledgedWrites.incrementAndGet();
+            mWriteToEmit.record(latencyNanos);
+        }
+    }
+
+    /**
+     * Records a frame written again because its acknowledgement did not arrive in time.
+     */
+    void recordRetransmitted() {
+        if (mEnabled) {
+            mRetransmittedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a frame the bridge never acknowledged.
+     */
+    void recordUnacknowledged() {
+        if (mEnabled) {
+            mUnacknowledgedWrites.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a GATT operation that failed.  Failed key frame writes are recorded by
+     * {@link #recordWrite(int, int, long, long)}.
+     */
+    void recordStatus(int status) {
+        if (!mEnabled) {
+            return;
+        }
+        AtomicLong count = mStatusCounts.get(status);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = mStatusCounts.putIfAbsent(status, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @param reconnect True if the connection was brought back after the link was lost.
+     */
+    void recordConnected(boolean reconnect) {
+        if (mEnabled) {
+            (reconnect ? mReconnects : mConnects).incrementAndGet();
+        }
+    }
+
+    void recordDisconnected() {
+        if (mEnabled) {
+            mDisconnects.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the first command completed after a lost link was brought back.
+     *
+     * @param nanos Time from losing the link to the completion of the command.
+     */
+    void recordTimeToFirstCommand(long nanos) {
+        if (mEnabled) {
+            mReconnectToCommand.record(nanos);
+        }
+    }
+
+    void reset() {
+        mClickToEnqueue.reset();
+        mBuffered.reset();
+        mEnqueueToWrite.reset();
+        mWriteToAck.reset();
+        mWriteToEmit.reset();
+        mReconnectToCommand.reset();
+        for (LatencyHistogram laneLatency : mLaneLatency) {
+            laneLatency.reset();
+        }
+        mWrites.set(0);
+        mFailedWrites.set(0);
+        mCoalescedWrites.set(0);
+        mAcknowledgedWrites.set(0);
+        mRetransmittedWrites.set(0);
+        mUnacknowledgedWrites.set(0);
+        mConnects.set(0);
+        mReconnects.set(0);
+        mDisconnects.set(0);
+        mStatusCounts.clear();
+    }
+
+    /**
+     * Prints the metrics as text, for {@code dumpsys} and the metrics screen.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Command metrics (" + (mEnabled ? "enabled" : "disabled") + ")");
+        writer.println("  writes=" + mWrites.get() + " failed=" + mFailedWrites.get()
+                + " coalesced=" + mCoalescedWrites.get());
+        writer.println("  acknowledged=" + mAcknowledgedWrites.get()
+                + " retransmitted=" + mRetransmittedWrites.get()
+                + " unacknowledged=" + mUnacknowledgedWrites.get());
+        writer.println("  connects=" + mConnects.get() + " reconnects=" + mReconnects.get()
+                + " disconnects=" + mDisconnects.get());
+        final Map<Integer, AtomicLong> statusCounts = new TreeMap<>(mStatusCounts);
+        if (!statusCounts.isEmpty()) {
+            writer.println("  errors:");
+            for (Map.Entry<Integer, AtomicLong> entry : statusCounts.entrySet()) {
+                writer.println("    " + describeStatus(entry.getKey()) + ": "
+                        + entry.getValue().get());
+            }
+        }
+        writer.println("  click to enqueue: " + mClickToEnqueue);
+        writer.println("  buffered:         " + mBuffered);
+        writer.println("  enqueue to write: " + mEnqueueToWrite);
+        writer.println("  write to ack:     " + mWriteToAck);
+        writer.println("  write to IR:      " + mWriteToEmit);
+        writer.println("  lost to command:  " + mReconnectToCommand);
+        writer.println("  enqueue to ack per lane:");
+        writer.println("    urgent:      " + mLaneLatency[GattOperationQueue.LANE_URGENT]);
+        writer.println("    interactive: " + mLaneLatency[GattOperationQueue.LANE_INTERACTIVE]);
+        writer.println("    background:  " + mLaneLatency[GattOperationQueue.LANE_BACKGROUND]);
+    }
+
+    private static String describeStatus(int status) {
+        switch (status) {
+            case GattOperationQueue.STATUS_TIMEOUT:
+                return "timeout";
+            case GattOperationQueue.STATUS_REJECTED:
+                return "rejected";
+            case GattOperationQueue.STATUS_CANCELLED:
+                return "cancelled";
+            case GattOperationQueue.STATUS_DROPPED:
+                return "dropped";
+            default:
+                return String.format("GATT 0x%02x", status);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.delta_phi.bleiremote;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the GATT layout of the devices the service connected to.
+ *
+ * A layout holds the services and characteristics found by the last service discovery,
+ * together with the properties of every characteristic and the Database Hash (0x2B2A) the
+ * device reported for them, if it has one.  The app keeps layouts across restarts in shared
+ * preferences, see {@code PreferencesAttributeCache}; {@link MemoryAttributeCache} keeps
+ * them for the lifetime of the process.
+ *
+ * The platform does not allow writing to a characteristic that was not discovered on the
+ * current connection, so a cached layout cannot replace discovery on a fresh
+ * connection.  It tells the service before discovery completes what the device will offer:
+ * key frames sent while the link is being set up are held in a {@link PendingFrameBuffer}
+ * until discovery resolves the remote control characteristic, or refused right away if the
+ * cached layout lacks it.  Once discovery completes, the Database Hash tells whether the
+ * stored layout needs to be rewritten.
+ */
+interface GattAttributeCache {
+
+    /**
+     * The cached GATT layout of one device.
+     */
+    final class Layout {
+        private final byte[] mDatabaseHash;
+        private final Map<UUID, Map<UUID, Integer>> mServices;
+
+        /**
+         * @param databaseHash The Database Hash read for the services, or null if the device
+         *                     has none.
+         * @param services The properties of every characteristic, by service and
+         *                 characteristic UUID.
+         */
+        Layout(byte[] databaseHash, Map<UUID, Map<UUID, Integer>> services) {
+            mDatabaseHash = databaseHash;
+            mServices = services;
+        }
+
+        /**
+         * Captures discovered services.
+         *
+         * @param databaseHash The Database Hash read for these services, or null if the
+         *                     device has none.
+         */
+        static Layout of(List<GattTransport.Service> discovered, byte[] databaseHash) {
+            final Map<UUID, Map<UUID, Integer>> services = new HashMap<>();
+            for (GattTransport.Service service : discovered) {
+                final Map<UUID, Integer> characteristics = new HashMap<>();
+                for (GattTransport.Characteristic characteristic
+                        : service.getCharacteristics()) {
+                    characteristics.put(characteristic.getUuid(), characteristic.getProperties());
+                }
+                services.put(service.getUuid(), characteristics);
+            }
+            return new Layout(databaseHash, services);
+        }
+
+        /**
+         * @return The Database Hash of the layout, or null if the device has none.
+         */
+        byte[] getDatabaseHash() {
+            return mDatabaseHash;
+        }
+
+        /**
+         * @return The properties of every characteristic, by service and characteristic UUID.
+         */
+        Map<UUID, Map<UUID, Integer>> getServices() {
+            return Collections.unmodifiableMap(mServices);
+        }
+
+        /**
+         * @return The properties of the characteristic, or -1 if the layout does not contain
+         *         it.
+         */
+        int getProperties(UUID service, UUID characteristic) {
+            final Map<UUID, Integer> characteristics = mServices.get(service);
+            if (characteristics == null) {
+                return -1;
+            }
+            final Integer properties = characteristics.get(characteristic);
+            return properties != null ? properties : -1;
+        }
+
+        /**
+         * @return Return true if both layouts contain the same services and characteristics.
+         *         The Database Hash is not compared.
+         */
+        boolean sameAttributesAs(Layout other) {
+            return mServices.equals(other.mServices);
+        }
+    }
+
+    /**
+     * @return The cached layout of the device, or null if there is none or it is unreadable.
+     */
+    Layout get(String address);
+
+    /**
+     * Stores the layout of the device, replacing the previous one.  The write may happen in
+     * the background.
+     */
+    void put(String address, Layout layout);
+
+    void remove(String address);
+}
@@ -0,0 +1,326 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the command path of {@link BridgeConnection} against a {@link SimulatedGattPeer}.
+ *
+ * A run connects to the simulated bridge at high connection priority and measures
+ * <ul>
+ *     <li>throughput: {@code BURST_FRAMES} key frames sent as fast as the queue takes them
+ *     without dropping any, i.e. with at most {@code BURST_WINDOW} outstanding, in commands
+ *     per second,</li>
+ *     <li>press-to-ack latency: {@code SEQUENTIAL_FRAMES} key frames, each sent after the
+ *     previous one completed, as 50th and 99th percentile,</li>
+ *     <li>reconnect time: the link is dropped and a key frame sent as soon as the connection
+ *     noticed; the time from the drop until the frame completed on the new link.</li>
+ * </ul>
+ * By default the peer follows {@code SCRIPT}, a bridge that does not acknowledge frames, so
+ * the numbers show what the link and the operation queue can do.  With a script that
+ * acknowledges frames, a key frame completes once the bridge emitted it, which takes it about
+ * {@code 150 ms}, so such a run is given fewer frames.  {@link #withResponse()} runs against
+ * the same bridge limited to writes with response, to show what writes without response
+ * gain.  The peer is seeded, so runs on the same machine are comparable.  The result is
+ * logged as a single line, with the tag of this class, to be compared between builds;
+ * {@code GattBenchmarkTest} fails the build if it regresses, see
+ * {@code ./gradlew :core:benchmark}.
+ *
+ * {@link #runMacros(Macro...)} sends macros over the same kind of connection instead and
+ * measures, per macro, the writes the peer received and the time until the last one
+ * completed; {@code MacroBenchmarkTest} checks those.
+ *
+ * A run takes a few seconds and blocks; call {@link #run()} off the main thread.
+ */
+class GattBenchmark {
+    private final static String TAG = GattBenchmark.class.getSimpleName();
+
+    // Not a valid public address, so it never collides with a real bridge.
+    private static final String ADDRESS = "00:00:00:00:00:00";
+    private static final SimulatedGattPeer.Script SCRIPT =
+            new SimulatedGattPeer.Script(1, 100, 300, 185, 0.001f);
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final int BURST_FRAMES = 500;
+    // Below the bound of the operation queue, which drops key frames beyond it.
+    private static final int BURST_WINDOW = 8;
+    private static final int SEQUENTIAL_FRAMES = 200;
+    private static final long TIMEOUT_MS = 20000;
+
+    // Technics CD 1, a key that is neither merged with others nor urgent.
+    private static final byte[] FRAME = IrEncoder.TECHNICS.encode(0x0000, 0x020C, 0x00);
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The outcome of one run.
+     */
+    static class Result {
+        final float mCommandsPerSecond;
+        final long mLatencyP50Nanos;
+        final long mLatencyP99Nanos;
+        final long mReconnectNanos;
+        final long mPeerWrites;
+        // Counted by the peer; zero if it does not acknowledge frames.
+        final long mAcknowledgements;
+        final long mRetransmissions;
+
+        Result(float commandsPerSecond, long latencyP50Nanos, long latencyP99Nanos,
+               long reconnectNanos, SimulatedGattPeer peer) {
+            mCommandsPerSecond = commandsPerSecond;
+            mLatencyP50Nanos = latencyP50Nanos;
+            mLatencyP99Nanos = latencyP99Nanos;
+            mReconnectNanos = reconnectNanos;
+            mPeerWrites = peer.getReceivedWrites();
+            mAcknowledgements = peer.getAcknowledgements();
+            mRetransmissions = peer.getRetransmissions();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "commands/s=%.1f p50=%.2fms p99=%.2fms"
+                            + " reconnect=%dms writes=%d acks=%d retransmissions=%d",
+                    mCommandsPerSecond, mLatencyP50Nanos / 1e6, mLatencyP99Nanos / 1e6,
+                    mReconnectNanos / 1000000, mPeerWrites, mAcknowledgements,
+                    mRetransmissions);
+        }
+    }
+
+    /**
+     * The outcome of sending one macro.
+     */
+    static class MacroResult {
+        final String mName;
+        final int mFrames;
+        final int mMtu;
+        final long mWrites;
+        final long mWallNanos;
+
+        MacroResult(Macro macro, int mtu, long writes, long wallNanos) {
+            mName = macro.getName();
+            mFrames = macro.getFrameCount();
+            mMtu = mtu;
+            mWrites = writes;
+            mWallNanos = wallNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: frames=%d mtu=%d writes=%d wall=%.2fms",
+                    mName, mFrames, mMtu, mWrites, mWallNanos / 1e6);
+        }
+    }
+
+    // A connection to a simulated bridge, with the events the benchmark waits for.
+    private class Session {
+        final ScheduledExecutorService mScheduler = BridgeConnection.newGattThread(TAG);
+        final ScheduledExecutorService mPeerExecutor =
+                Executors.newSingleThreadScheduledExecutor();
+        final SimulatedGattPeer.Factory mPeers =
+                new SimulatedGattPeer.Factory(mScript, mPeerExecutor);
+        final GattEventBus mEventBus = new GattEventBus();
+        // Every run starts without a cached layout, like the first connection to a bridge.
+        final BridgeConnection mConnection = new BridgeConnection(ADDRESS, mPeers, mScheduler,
+                mEventBus, new MemoryAttributeCache(), new CommandMetrics(), CommandClasses.NONE);
+        final CountDownLatch mServicesReady = new CountDownLatch(1);
+        final CountDownLatch mDisconnected = new CountDownLatch(1);
+
+        // Connects at high connection priority and returns false if the services were not
+        // discovered in time.
+        boolean open() {
+            mEventBus.register(new GattEventListener() {
+                @Override
+                public void onGattConnected(String address) {
+                }
+
+                @Override
+                public void onGattDisconnected(String address) {
+                    mDisconnected.countDown();
+                }
+
+                @Override
+                public void onGattServicesDiscovered(String address) {
+                    mServicesReady.countDown();
+                }
+            }, DIRECT);
+            mConnection.setConnectionPriority(GattTransport.CONNECTION_PRIORITY_HIGH);
+            mConnection.connect();
+            return await(mServicesReady);
+        }
+
+        void close() {
+            mConnection.close();
+            mScheduler.shutdown();
+            mPeerExecutor.shutdownNow();
+        }
+    }
+
+    private final SimulatedGattPeer.Script mScript;
+    private final int mBurstFrames;
+    private final int mSequentialFrames;
+
+    GattBenchmark() {
+        this(SCRIPT, BURST_FRAMES, SEQUENTIAL_FRAMES);
+    }
+
+    /**
+     * @return A benchmark against the default bridge, but one that only takes writes with
+     *         response, so every key frame costs a round trip.
+     */
+    static GattBenchmark withResponse() {
+        return new GattBenchmark(SCRIPT.withoutWriteNoResponse(), BURST_FRAMES,
+                SEQUENTIAL_FRAMES);
+    }
+
+    /**
+     * @param burstFrames      The number of key frames the throughput is measured with.
+     * @param sequentialFrames The number of key frames the latency is measured with.
+     */
+    GattBenchmark(SimulatedGattPeer.Script script, int burstFrames, int sequentialFrames) {
+        mScript = script;
+        mBurstFrames = burstFrames;
+        mSequentialFrames = sequentialFrames;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @return The result, or null if the simulated bridge did not respond in time.
+     */
+    Result run() {
+        final Session session = new Session();
+        final BridgeConnection connection = session.mConnection;
+        try {
+            if (!session.open() || sendBurst(connection, WARMUP_FRAMES) < 0) {
+                return null;
+            }
+
+            final long burstNanos = sendBurst(connection, mBurstFrames);
+            if (burstNanos < 0) {
+                return null;
+            }
+
+            final LatencyHistogram latency = new LatencyHistogram();
+            for (int i = 0; i < mSequentialFrames; i++) {
+                final long frameNanos = sendBurst(connection, 1);
+                if (frameNanos < 0) {
+                    return null;
+                }
+                latency.record(frameNanos);
+            }
+
+            // The frame is sent once the connection noticed the drop, so it is buffered until
+            // the link is back.  It is dropped if that takes longer than its time to live.
+            final SimulatedGattPeer peer = session.mPeers.getLastPeer();
+            final long dropped = System.nanoTime();
+            peer.dropLink();
+            if (!await(session.mDisconnected)) {
+                return null;
+            }
+            final long writesBeforeReconnect = peer.getReceivedWrites();
+            if (sendBurst(connection, 1) < 0
+                    || peer.getReceivedWrites() == writesBeforeReconnect) {
+                GattLog.w(TAG, "Key frame sent during the reconnect was dropped.");
+                return null;
+            }
+            final long reconnectNanos = System.nanoTime() - dropped;
+
+            final Result result = new Result(mBurstFrames * 1e9f / burstNanos,
+                    latency.getPercentileNanos(50), latency.getPercentileNanos(99),
+                    reconnectNanos, peer);
+            GattLog.i(TAG, mScript + ": " + result);
+            return result;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Sends the macros one after the other, each once the previous one completed.
+     *
+     * @return The results in the order of the macros, or null if the simulated bridge did not
+     *         respond in time.
+     */
+    List<MacroResult> runMacros(Macro... macros) {
+        final Session session = new Session();
+        final BridgeConnection connection = session.mConnection;
+        try {
+            if (!session.open() || sendBurst(connection, WARMUP_FRAMES) < 0) {
+                return null;
+            }
+            final SimulatedGattPeer peer = session.mPeers.getLastPeer();
+            final List<MacroResult> results = new ArrayList<>(macros.length);
+            for (Macro macro : macros) {
+                final CountDownLatch completed = new CountDownLatch(1);
+                final long writesBefore = peer.getReceivedWrites();
+                final long start = System.nanoTime();
+                if (!connection.sendMacro(macro, new Runnable() {
+                    @Override
+                    public void run() {
+                        completed.countDown();
+                    }
+                }) || !await(completed)) {
+                    return null;
+                }
+                final MacroResult result = new MacroResult(macro, connection.getMtu(),
+                        peer.getReceivedWrites() - writesBefore, System.nanoTime() - start);
+                GattLog.i(TAG, mScript + ": " + result);
+                results.add(result);
+            }
+            return results;
+        } finally {
+            session.close();
+        }
+    }
+
+    // Sends count key frames, at most BURST_WINDOW at once, and returns the time until the
+    // last one completed, or -1 if they did not complete in time.
+    private static long sendBurst(BridgeConnection connection, int count) {
+        final CountDownLatch completed = new CountDownLatch(count);
+        final Semaphore window = new Semaphore(BURST_WINDOW);
+        final Runnable onComplete = new Runnable() {
+            @Override
+            public void run() {
+                window.release();
+                completed.countDown();
+            }
+        };
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (!window.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        || !connection.sendFrame(FRAME, onComplete)) {
+                    return -1;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return await(completed) ? System.nanoTime() - start : -1;
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            if (latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            GattLog.w(TAG, "Simulated bridge did not respond within " + TIMEOUT_MS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+package net.delta_phi.bleiremote;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the events of {@code BluetoothLeService} to in-process listeners.
+ *
+ * Each listener is registered with an executor, e.g. one that posts to the main thread, and
+ * receives its callbacks there in the order the events were posted.  Delivery is a plain
+ * method call: no Intent is built and no IPC is involved.  The time between posting an event
+ * and running the callback is recorded per delivery.
+ *
+ * Characteristic values go only to the listeners subscribed to that characteristic, as the
+ * raw array.  A value nobody subscribed to is dropped without any further work.
+ */
+class GattEventBus {
+
+    private static final int EVENT_CONNECTED = 0;
+    private static final int EVENT_DISCONNECTED = 1;
+    private static final int EVENT_SERVICES_DISCOVERED = 2;
+
+    private static class Registration<L> {
+        final L mListener;
+        final Executor mExecutor;
+
+        Registration(L listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration<GattEventListener>> mRegistrations =
+            new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<UUID,
+            CopyOnWriteArrayList<Registration<CharacteristicValueListener>>> mValueRegistrations =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong mDeliveryCount = new AtomicLong();
+    private final AtomicLong mTotalDeliveryNanos = new AtomicLong();
+    private final AtomicLong mMaxDeliveryNanos = new AtomicLong();
+
+    /**
+     * Registers {@code listener}.  Its callbacks run on {@code executor}.
+     */
+    void register(GattEventListener listener, Executor executor) {
+        mRegistrations.add(new Registration<>(listener, executor));
+    }
+
+    /**
+     * Removes all registrations of {@code listener}.
+     */
+    void unregister(GattEventListener listener) {
+        removeListener(mRegistrations, listener);
+    }
+
+    /**
+     * Subscribes {@code listener} to the values of {@code characteristic}.  Its callbacks run
+     * on {@code executor}.
+     */
+    void subscribe(UUID characteristic, CharacteristicValueListener listener,
+                   Executor executor) {
+        CopyOnWriteArrayList<Registration<CharacteristicValueListener>> registrations =
+                mValueRegistrations.get(characteristic);
+        if (registrations == null) {
+            final CopyOnWriteArrayList<Registration<CharacteristicValueListener>> created =
+                    new CopyOnWriteArrayList<>();
+            registrations = mValueRegistrations.putIfAbsent(characteristic, created);
+            if (registrations == null) {
+                registrations = created;
+            }
+        }
+        registrations.add(new Registration<>(listener, executor));
+    }
+
+    /**
+     * Removes all subscriptions of {@code listener}.
+     */
+    void unsubscribe(CharacteristicValueListener listener) {
+        for (CopyOnWriteArrayList<Registration<CharacteristicValueListener>> registrations
+                : mValueRegistrations.values()) {
+            removeListener(registrations, listener);
+        }
+    }
+
+    private static <L> void removeListener(CopyOnWriteArrayList<Registration<L>> registrations,
+                                           L listener) {
+        for (Registration<L> registration : registrations) {
+            if (registration.mListener == listener) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    void postConnected(String address) {
+        post(address, EVENT_CONNECTED);
+    }
+
+    void postDisconnected(String address) {
+        post(address, EVENT_DISCONNECTED);
+    }
+
+    void postServicesDiscovered(String address) {
+        post(address, EVENT_SERVICES_DISCOVERED);
+    }
+
+    void postValue(final String address, final UUID characteristic, final byte[] value) {
+        final CopyOnWriteArrayList<Registration<CharacteristicValueListener>> registrations =
+                mValueRegistrations.get(characteristic);
+        if (registrations == null || registrations.isEmpty()) {
+            return;
+        }
+        final long postedNanos = System.nanoTime();
+        for (final Registration<CharacteristicValueListener> registration : registrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recordDelivery(System.nanoTime() - postedNanos);
+                    registration.mListener.onCharacteristicValue(address, characteristic, value);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Mean time between posting an event and running a listener callback.
+     */
+    long getAverageDeliveryNanos() {
+        final long count = mDeliveryCount.get();
+        return count == 0 ? 0 : mTotalDeliveryNanos.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "GattEventBus{listeners=" + mRegistrations.size()
+                + ", deliveries=" + mDeliveryCount.get()
+                + ", avgDeliveryUs=" + TimeUnit.NANOSECONDS.toMicros(getAverageDeliveryNanos())
+                + ", maxDeliveryUs=" + TimeUnit.NANOSECONDS.toMicros(mMaxDeliveryNanos.get())
+                + "}";
+    }
+
+    private void post(final String address, final int event) {
+        final long postedNanos = System.nanoTime();
+        for (final Registration<GattEventListener> registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    recordDelivery(System.nanoTime() - postedNanos);
+                    deliver(registration.mListener, address, event);
+                }
+            });
+        }
+    }
+
+    private static void deliver(GattEventListener listener, String address, int event) {
+        switch (event) {
+            case EVENT_CONNECTED:
+                listener.onGattConnected(address);
+                break;
+            case EVENT_DISCONNECTED:
+                listener.onGattDisconnected(address);
+                break;
+            case EVENT_SERVICES_DISCOVERED:
+                listener.onGattServicesDiscovered(address);
+                break;
+        }
+    }
+
+    private void recordDelivery(long nanos) {
+        mDeliveryCount.incrementAndGet();
+        mTotalDeliveryNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxDeliveryNanos.get())) {
+            if (mMaxDeliveryNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.delta_phi.bleiremote;
+
+/**
+ * Receives the connection events of {@code BluetoothLeService}.  Listeners are registered
+ * through {@code BluetoothLeService.LocalBinder} together with the executor their callbacks
+ * run on and receive the events of every connected device, identified by its address.
+ * Characteristic values are delivered to {@link CharacteristicValueListener}s.
+ */
+interface GattEventListener {
+    /** Connected to a GATT server. */
+    void onGattConnected(String address);
+
+    /** Disconnected from a GATT server. */
+    void onGattDisconnected(String address);
+
+    /** The GATT services of the server have been discovered. */
+    void onGattServicesDiscovered(String address);
+
+}
@@ -0,0 +1,74 @@
+package net.delta_phi.bleiremote;
+
+/**
+ * Logging for the classes that do not depend on the Android framework.
+ *
+ * The levels and methods follow {@code android.util.Log}.  The app routes the messages there
+ * with {@link #setSink(Sink)}; without a sink, e.g. in unit tests and benchmarks, warnings go
+ * to standard error and everything else is dropped.
+ */
+final class GattLog {
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+
+    /**
+     * Receives the messages.
+     */
+    interface Sink {
+        /**
+         * @return Return true if messages of the level are wanted, for messages that are
+         *         expensive to build.
+         */
+        boolean isLoggable(String tag, int level);
+
+        void println(int level, String tag, String message);
+    }
+
+    private static final Sink STANDARD_ERROR = new Sink() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            return level >= WARN;
+        }
+
+        @Override
+        public void println(int level, String tag, String message) {
+            if (level >= WARN) {
+                System.err.println(tag + ": " + message);
+            }
+        }
+    };
+
+    private static volatile Sink sSink = STANDARD_ERROR;
+
+    private GattLog() {
+    }
+
+    /**
+     * Routes all messages to {@code sink}, or back to standard error if it is null.
+     */
+    static void setSink(Sink sink) {
+        sSink = sink != null ? sink : STANDARD_ERROR;
+    }
+
+    static boolean isLoggable(String tag, int level) {
+        return sSink.isLoggable(tag, level);
+    }
+
+    static void v(String tag, String message) {
+        sSink.println(VERBOSE, tag, message);
+    }
+
+    static void d(String tag, String message) {
+        sSink.println(DEBUG, tag, message);
+    }
+
+    static void i(String tag, String message) {
+        sSink.println(INFO, tag, message);
+    }
+
+    static void w(String tag, String message) {
+        sSink.println(WARN, tag, message);
+    }
+}
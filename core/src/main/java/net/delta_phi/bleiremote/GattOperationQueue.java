@@ -0,0 +1,417 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializes the GATT operations issued on a single connection.
+ *
+ * The Android Bluetooth stack accepts only one outstanding GATT request per connection and
+ * rejects every request issued while another one is pending.  This queue holds the requests
+ * and issues the next one as soon as the completion callback of the current one arrives, so
+ * the link never idles while work is pending and no request is dropped.  Every operation is
+ * guarded by a timeout so a lost callback cannot stall the queue forever.
+ *
+ * Writes without response do not wait for the peer, only for the local stack to accept the
+ * packet.  They are flow controlled with credits: up to {@code maxCredits} of them may be in
+ * flight at once, and each completion callback returns one credit.  If the stack refuses such
+ * a write while others are in flight, the write stays at the head of the queue until the next
+ * credit comes back instead of being dropped.
+ *
+ * Under backpressure the queue is kept short.  An operation may absorb the one enqueued right
+ * behind it, see {@link Operation#coalesce(Operation)}, e.g. a volume step merged into the
+ * step before it.  Only neighbours merge, so the order of different operations is kept.  At
+ * most {@code maxPending} operations wait at once: when the queue is full, the oldest
+ * operation that may be dropped is completed with {@link #STATUS_DROPPED} to make room, so
+ * the newest command never waits behind more than {@code maxPending} others.  Operations
+ * that may not be dropped are queued regardless.
+ *
+ * Pending operations wait in priority lanes, see {@link Operation#getLane()}.  The next
+ * operation is always taken from the most urgent lane that has one, so e.g. a power press
+ * overtakes queued volume steps, and macro playback in the background lane only proceeds
+ * while no key press waits.  Operations already in flight are not preempted.  Within a lane
+ * operations are issued in the order they were enqueued, and only neighbours in a lane merge.
+ * When the queue is full, droppable operations are dropped from the least urgent lane first.
+ *
+ * The queue itself does not depend on the Android framework; operations are plain objects
+ * that issue their request in {@link Operation#execute()}.
+ */
+class GattOperationQueue {
+
+    /** The operation completed because its timeout expired before a callback arrived. */
+    static final int STATUS_TIMEOUT = -1;
+    /** The stack refused to issue the operation. */
+    static final int STATUS_REJECTED = -2;
+    /** The operation was dropped before it was issued, e.g. because the link went down. */
+    static final int STATUS_CANCELLED = -3;
+    /** The operation was dropped before it was issued, to make room in a full queue. */
+    static final int STATUS_DROPPED = -4;
+
+    /** Lane for commands that must not wait behind routine traffic, e.g. power and mute. */
+    static final int LANE_URGENT = 0;
+    /** Lane for key presses and all other operations. */
+    static final int LANE_INTERACTIVE = 1;
+    /** Lane for bulk traffic that yields to everything else, e.g. macro playback. */
+    static final int LANE_BACKGROUND = 2;
+    static final int LANE_COUNT = 3;
+
+    /**
+     * A single GATT request.  Implementations issue exactly one request on the
+     * {@code BluetoothGatt} whose completion is reported through
+     * {@link GattOperationQueue#onOperationComplete(int)}.
+     */
+    static abstract class Operation {
+        private long mEnqueuedNanos;
+        private long mStartedNanos;
+        private long mCompletedNanos;
+        private ScheduledFuture<?> mTimeout;
+
+        /**
+         * Issues the request.
+         *
+         * @return Return true if the request was accepted by the stack.
+         */
+        abstract boolean execute();
+
+        /**
+         * @return Return true if the operation waits for the peer, i.e. must be the only
+         *         operation in flight.  Writes without response return false and are
+         *         credit-based instead.
+         */
+        boolean expectsResponse() {
+            return true;
+        }
+
+        /**
+         * Called once the operation has finished, successfully or not.
+         *
+         * @param status A {@code BluetoothGatt} status code or one of the queue's
+         *               {@code STATUS_*} codes.
+         */
+        void onComplete(int status) {
+        }
+
+        /**
+         * Offers {@code next}, enqueued while this operation is the last one pending, to be
+         * merged into this one.  Called with the queue locked, so the operation is not issued
+         * meanwhile.
+         *
+         * @return Return true if this operation now does the work of {@code next} as well.
+         *         {@code next} is then not queued, and completing it is up to this operation.
+         */
+        boolean coalesce(Operation next) {
+            return false;
+        }
+
+        /**
+         * @return Return true if the operation may be dropped when the queue is full, e.g. a
+         *         key press the user will repeat if it is lost.
+         */
+        boolean isDroppable() {
+            return false;
+        }
+
+        /**
+         * @return The lane the operation waits in, one of the {@code LANE_*} constants.
+         */
+        int getLane() {
+            return LANE_INTERACTIVE;
+        }
+
+        /**
+         * @return The time the operation waited in the queue before it was issued, or -1 if
+         *         it has not been issued.
+         */
+        final long getQueuedNanos() {
+            return mStartedNanos == 0 ? -1 : mStartedNanos - mEnqueuedNanos;
+        }
+
+        /**
+         * @return The time from issuing the operation to its completion, or -1 if it has not
+         *         been issued or has not completed.  Valid in {@link #onComplete(int)}.
+         */
+        final long getLatencyNanos() {
+            return mStartedNanos == 0 || mCompletedNanos == 0
+                    ? -1 : mCompletedNanos - mStartedNanos;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mTimeoutMillis;
+    private final int mMaxCredits;
+    private final int mMaxPending;
+
+    // Pending operations, one queue per lane, most urgent lane first.
+    private final List<Deque<Operation>> mLanes = new ArrayList<>(LANE_COUNT);
+    // Issued operations in the order their completion callbacks will arrive.
+    private final Deque<Operation> mInFlight = new ArrayDeque<>();
+    private boolean mReady;
+
+    // Statistics, guarded by this.
+    private int mMaxDepth;
+    private long mCompletedCount;
+    private long mFailedCount;
+    private long mCoalescedCount;
+    private long mDroppedCount;
+    private long mLastLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mTotalLatencyNanos;
+    private long mTotalWaitNanos;
+
+    /**
+     * @param scheduler Executor used to run the per-operation timeouts.
+     * @param timeoutMillis Time after which an issued operation is considered lost.
+     * @param maxCredits Maximum number of writes without response in flight at once.
+     * @param maxPending Number of waiting operations at which droppable ones are dropped to
+     *                   make room.
+     */
+    GattOperationQueue(ScheduledExecutorService scheduler, long timeoutMillis, int maxCredits,
+                       int maxPending) {
+        mScheduler = scheduler;
+        mTimeoutMillis = timeoutMillis;
+        mMaxCredits = maxCredits;
+        mMaxPending = maxPending;
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mLanes.add(new ArrayDeque<Operation>());
+        }
+    }
+
+    /**
+     * Appends an operation, unless the last pending operation absorbs it.  It is issued
+     * immediately if the queue is ready and has room.  If the queue is full, the oldest
+     * droppable operation is dropped.
+     */
+    void enqueue(Operation operation) {
+        final Operation dropped;
+        synchronized (this) {
+            final Deque<Operation> lane = mLanes.get(operation.getLane());
+            final Operation last = lane.peekLast();
+            if (last != null && last.coalesce(operation)) {
+                mCoalescedCount++;
+                return;
+            }
+            dropped = getPendingCount() >= mMaxPending ? removeOldestDroppable() : null;
+            operation.mEnqueuedNanos = System.nanoTime();
+            lane.addLast(operation);
+            mMaxDepth = Math.max(mMaxDepth, getDepth());
+        }
+        if (dropped != null) {
+            dropped.onComplete(STATUS_DROPPED);
+        }
+        issueNext();
+    }
+
+    /**
+     * Opens or closes the queue.  A closed queue holds new operations without issuing them;
+     * closing the queue cancels everything that is still pending.
+     */
+    void setReady(boolean ready) {
+        synchronized (this) {
+            mReady = ready;
+        }
+        if (ready) {
+            issueNext();
+        } else {
+            clear();
+        }
+    }
+
+    /**
+     * Reports the completion of the oldest operation in flight.  Must be called from the
+     * {@code BluetoothGattCallback} method matching the issued request.
+     *
+     * @param status The status reported by the callback.
+     */
+    void onOperationComplete(int status) {
+        final Operation finished;
+        synchronized (this) {
+            finished = mInFlight.peekFirst();
+            if (finished == null) {
+                return;
+            }
+            finish(finished, status);
+        }
+        finished.onComplete(status);
+        issueNext();
+    }
+
+    /**
+     * Cancels all operations in flight and all pending ones.
+     */
+    void clear() {
+        final List<Operation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            while (!mInFlight.isEmpty()) {
+                final Operation operation = mInFlight.peekFirst();
+                finish(operation, STATUS_CANCELLED);
+                cancelled.add(operation);
+            }
+            for (Deque<Operation> lane : mLanes) {
+                cancelled.addAll(lane);
+                lane.clear();
+            }
+        }
+        for (Operation operation : cancelled) {
+            operation.onComplete(STATUS_CANCELLED);
+        }
+    }
+
+    /**
+     * @return The number of operations that are pending or in flight.
+     */
+    synchronized int getDepth() {
+        return getPendingCount() + mInFlight.size();
+    }
+
+    /**
+     * @return Issue-to-callback latency of the most recently completed operation.
+     */
+    synchronized long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * @return Mean issue-to-callback latency over all completed operations.
+     */
+    synchronized long getAverageLatencyNanos() {
+        return mCompletedCount == 0 ? 0 : mTotalLatencyNanos / mCompletedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long divisor = Math.max(mCompletedCount, 1);
+        return "GattOperationQueue{depth=" + getDepth()
+                + ", maxDepth=" + mMaxDepth
+                + ", completed=" + mCompletedCount
+                + ", failed=" + mFailedCount
+                + ", coalesced=" + mCoalescedCount
+                + ", dropped=" + mDroppedCount
+                + ", lastLatencyUs=" + TimeUnit.NANOSECONDS.toMicros(mLastLatencyNanos)
+                + ", avgLatencyUs=" + TimeUnit.NANOSECONDS.toMicros(mTotalLatencyNanos / divisor)
+                + ", maxLatencyUs=" + TimeUnit.NANOSECONDS.toMicros(mMaxLatencyNanos)
+                + ", avgWaitUs=" + TimeUnit.NANOSECONDS.toMicros(mTotalWaitNanos / divisor)
+                + "}";
+    }
+
+    // Issues pending operations until the credits are used up, the stack pushes back or the
+    // queue runs dry.
+    private void issueNext() {
+        while (true) {
+            final Operation rejected;
+            synchronized (this) {
+                final Deque<Operation> lane = getNextLane();
+                final Operation operation = lane != null ? lane.peekFirst() : null;
+                if (!mReady || operation == null || !hasCreditFor(operation)) {
+                    return;
+                }
+                lane.pollFirst();
+                operation.mStartedNanos = System.nanoTime();
+                mInFlight.addLast(operation);
+                if (operation.execute()) {
+                    scheduleTimeout(operation);
+                    continue;
+                }
+                mInFlight.removeLast();
+                if (!mInFlight.isEmpty()) {
+                    // The stack is still busy with earlier writes; retry on the next callback.
+                    lane.addFirst(operation);
+                    return;
+                }
+                finish(operation, STATUS_REJECTED);
+                rejected = operation;
+            }
+            rejected.onComplete(STATUS_REJECTED);
+        }
+    }
+
+    // Must be called with the lock held.
+    private Operation removeOldestDroppable() {
+        for (int lane = LANE_COUNT - 1; lane >= 0; lane--) {
+            final Iterator<Operation> pending = mLanes.get(lane).iterator();
+            while (pending.hasNext()) {
+                final Operation operation = pending.next();
+                if (operation.isDroppable()) {
+                    pending.remove();
+                    mDroppedCount++;
+                    return operation;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Must be called with the lock held.
+    private Deque<Operation> getNextLane() {
+        for (Deque<Operation> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    // Must be called with the lock held.
+    private int getPendingCount() {
+        int count = 0;
+        for (Deque<Operation> lane : mLanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    // Must be called with the lock held.
+    private boolean hasCreditFor(Operation operation) {
+        if (mInFlight.isEmpty()) {
+            return true;
+        }
+        if (operation.expectsResponse() || mInFlight.peekLast().expectsResponse()) {
+            return false;
+        }
+        return mInFlight.size() < mMaxCredits;
+    }
+
+    private void scheduleTimeout(final Operation operation) {
+        operation.mTimeout = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattOperationQueue.this) {
+                    if (!mInFlight.contains(operation)) {
+                        return;
+                    }
+                    finish(operation, STATUS_TIMEOUT);
+                }
+                operation.onComplete(STATUS_TIMEOUT);
+                issueNext();
+            }
+        }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Must be called with the lock held.
+    private void finish(Operation operation, int status) {
+        if (operation.mTimeout != null) {
+            operation.mTimeout.cancel(false);
+            operation.mTimeout = null;
+        }
+        mInFlight.remove(operation);
+        final long now = System.nanoTime();
+        operation.mCompletedNanos = now;
+        if (status == STATUS_CANCELLED) {
+            return;
+        }
+        final long latency = now - operation.mStartedNanos;
+        mCompletedCount++;
+        if (status != 0) {
+            mFailedCount++;
+        }
+        mLastLatencyNanos = latency;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+        mTotalLatencyNanos += latency;
+        mTotalWaitNanos += operation.mStartedNanos - operation.mEnqueuedNanos;
+    }
+}
@@ -0,0 +1,246 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The client side of one GATT connection, as used by {@link BridgeConnection}.
+ *
+ * The methods mirror those of {@code BluetoothGatt}, but take plain values instead of the
+ * framework's attribute objects, so the connection logic does not depend on the Android
+ * framework.  {@code AndroidGattTransport} in the app forwards to the platform;
+ * {@link SimulatedGattPeer} plays a scripted bridge without a radio, so the connection logic
+ * can be exercised and measured on any JVM.  Status, state, priority, property and write
+ * type constants have the values of their platform counterparts.
+ *
+ * Results are reported to the {@link Callback} given to the factory, on a thread of the
+ * transport.
+ */
+interface GattTransport {
+
+    /** See {@code BluetoothGatt.GATT_SUCCESS}. */
+    int GATT_SUCCESS = 0;
+    /** See {@code BluetoothGatt.GATT_FAILURE}. */
+    int GATT_FAILURE = 0x101;
+
+    /** See {@code BluetoothProfile.STATE_DISCONNECTED}. */
+    int STATE_DISCONNECTED = 0;
+    /** See {@code BluetoothProfile.STATE_CONNECTED}. */
+    int STATE_CONNECTED = 2;
+
+    /** See {@code BluetoothGatt.CONNECTION_PRIORITY_BALANCED}. */
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    /** See {@code BluetoothGatt.CONNECTION_PRIORITY_HIGH}. */
+    int CONNECTION_PRIORITY_HIGH = 1;
+    /** See {@code BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER}. */
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    /**
+     * Opens transports.
+     */
+    interface Factory {
+        /**
+         * Starts connecting to a device, like {@code BluetoothDevice.connectGatt}.
+         *
+         * @param autoConnect True to wait until the device shows up instead of failing after
+         *                    a timeout.
+         *
+         * @return The transport, or null if the device is unknown.
+         */
+        GattTransport open(String address, boolean autoConnect, Callback callback);
+    }
+
+    /**
+     * Receives the results of a transport, like {@code BluetoothGattCallback}.  Values are
+     * handed over as copies the receiver may keep.
+     */
+    interface Callback {
+        void onConnectionStateChange(int status, int newState);
+
+        void onServicesDiscovered(int status);
+
+        void onMtuChanged(int mtu, int status);
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onDescriptorWrite(UUID descriptor, int status);
+
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+    }
+
+    /**
+     * A discovered service.
+     */
+    final class Service {
+        private final UUID mUuid;
+        private final List<Characteristic> mCharacteristics = new ArrayList<>();
+
+        Service(UUID uuid) {
+            mUuid = uuid;
+        }
+
+        /**
+         * Adds a characteristic while the service is being built.
+         *
+         * @return The characteristic.
+         */
+        Characteristic addCharacteristic(UUID uuid, int properties) {
+            final Characteristic characteristic = new Characteristic(this, uuid, properties);
+            mCharacteristics.add(characteristic);
+            return characteristic;
+        }
+
+        UUID getUuid() {
+            return mUuid;
+        }
+
+        List<Characteristic> getCharacteristics() {
+            return Collections.unmodifiableList(mCharacteristics);
+        }
+
+        /**
+         * @return The characteristic, or null if the service does not have it.
+         */
+        Characteristic getCharacteristic(UUID uuid) {
+            for (Characteristic characteristic : mCharacteristics) {
+                if (characteristic.getUuid().equals(uuid)) {
+                    return characteristic;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A characteristic of a discovered service.
+     */
+    final class Characteristic {
+        /** See {@code BluetoothGattCharacteristic.PROPERTY_READ}. */
+        static final int PROPERTY_READ = 0x02;
+        /** See {@code BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE}. */
+        static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+        /** See {@code BluetoothGattCharacteristic.PROPERTY_WRITE}. */
+        static final int PROPERTY_WRITE = 0x08;
+        /** See {@code BluetoothGattCharacteristic.PROPERTY_NOTIFY}. */
+        static final int PROPERTY_NOTIFY = 0x10;
+
+        /** See {@code BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE}. */
+        static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+        /** See {@code BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT}. */
+        static final int WRITE_TYPE_DEFAULT = 0x02;
+
+        private final Service mService;
+        private final UUID mUuid;
+        private final int mProperties;
+        private final List<Descriptor> mDescriptors = new ArrayList<>();
+
+        private Characteristic(Service service, UUID uuid, int properties) {
+            mService = service;
+            mUuid = uuid;
+            mProperties = properties;
+        }
+
+        /**
+         * Adds a descriptor while the service is being built.
+         *
+         * @return The descriptor.
+         */
+        Descriptor addDescriptor(UUID uuid) {
+            final Descriptor descriptor = new Descriptor(this, uuid);
+            mDescriptors.add(descriptor);
+            return descriptor;
+        }
+
+        Service getService() {
+            return mService;
+        }
+
+        UUID getUuid() {
+            return mUuid;
+        }
+
+        int getProperties() {
+            return mProperties;
+        }
+
+        /**
+         * @return The descriptor, or null if the characteristic does not have it.
+         */
+        Descriptor getDescriptor(UUID uuid) {
+            for (Descriptor descriptor : mDescriptors) {
+                if (descriptor.getUuid().equals(uuid)) {
+                    return descriptor;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A descriptor of a discovered characteristic.
+     */
+    final class Descriptor {
+        /** See {@code BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE}. */
+        static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+
+        private final Characteristic mCharacteristic;
+        private final UUID mUuid;
+
+        private Descriptor(Characteristic characteristic, UUID uuid) {
+            mCharacteristic = characteristic;
+            mUuid = uuid;
+        }
+
+        Characteristic getCharacteristic() {
+            return mCharacteristic;
+        }
+
+        UUID getUuid() {
+            return mUuid;
+        }
+    }
+
+    /**
+     * Connects again after the link was lost or disconnected.  The discovered services are
+     * kept.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Releases the transport.  No callbacks are made afterwards.
+     */
+    void close();
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int priority);
+
+    boolean discoverServices();
+
+    /**
+     * @return The service from the last discovery, or null.
+     */
+    Service getService(UUID uuid);
+
+    /**
+     * @return The services from the last discovery, empty before the first one.
+     */
+    List<Service> getServices();
+
+    boolean readCharacteristic(Characteristic characteristic);
+
+    /**
+     * @param writeType One of the {@code Characteristic.WRITE_TYPE_*} constants.
+     */
+    boolean writeCharacteristic(Characteristic characteristic, byte[] value, int writeType);
+
+    boolean writeDescriptor(Descriptor descriptor, byte[] value);
+
+    boolean setCharacteristicNotification(Characteristic characteristic, boolean enabled);
+}
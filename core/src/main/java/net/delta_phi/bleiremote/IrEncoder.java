@@ -0,0 +1,148 @@
+package net.delta_phi.bleiremote;
+
+/**
+ * Encodes IR commands into the frames the BLE-IR bridge hands to IRSND.
+ *
+ * A frame is the packed {@code IRMP_DATA} structure of the bridge firmware:
+ * {@code [protocol, address0, address1, command0, command1, flags]}, with the 16-bit address
+ * and command little-endian.  Every protocol the app speaks is one row of the table below: the
+ * IRMP protocol number and the number of address and command bits IRSND sends.  Encoding
+ * checks the values against those widths and writes the six bytes into a caller supplied
+ * buffer, so it never allocates.
+ */
+final class IrEncoder {
+
+    static final int FRAME_LENGTH = 6;
+
+    /** The flags bits holding the number of repetitions; IRSND sends a frame that often more. */
+    static final int REPETITION_MASK = 0x0F;
+
+    /** Sony SIRCS: 5 bit device, 7 bit function plus up to 8 extended device bits. */
+    static final IrEncoder SIRCS = new IrEncoder("SIRCS", 1, 5, 15);
+    /** NEC: 16 bit address, i.e. an 8 bit device address and its complement, 8 bit command. */
+    static final IrEncoder NEC = new IrEncoder("NEC", 2, 16, 8);
+    /** Kaseikyo, e.g. Panasonic: 16 bit manufacturer code, 12 bit command. */
+    static final IrEncoder KASEIKYO = new IrEncoder("Kaseikyo", 5, 16, 12);
+    /** Philips RC5 and RC5x: 5 bit address, 7 bit command including the field bit. */
+    static final IrEncoder RC5 = new IrEncoder("RC5", 7, 5, 7);
+    /** Technics: no address, 11 bit command. */
+    static final IrEncoder TECHNICS = new IrEncoder("Technics", 47, 0, 11);
+
+    private static final IrEncoder[] ALL = {SIRCS, NEC, KASEIKYO, RC5, TECHNICS};
+
+    private final String mName;
+    private final int mProtocol;
+    private final int mAddressMask;
+    private final int mCommandMask;
+
+    private IrEncoder(String name, int protocol, int addressBits, int commandBits) {
+        mName = name;
+        mProtocol = protocol;
+        mAddressMask = (1 << addressBits) - 1;
+        mCommandMask = (1 << commandBits) - 1;
+    }
+
+    /**
+     * @return The encoder for an IRMP protocol number, or null if the app does not speak the
+     *         protocol.
+     */
+    static IrEncoder forProtocol(int protocol) {
+        for (IrEncoder encoder : ALL) {
+            if (encoder.mProtocol == protocol) {
+                return encoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the frame for one command.
+     *
+     * @param flags The IRSND flags, e.g. the number of repetitions.
+     * @param frame Receives the frame at {@code offset..offset + FRAME_LENGTH}.
+     *
+     * @throws IllegalArgumentException If address or command do not fit the protocol.
+     */
+    void encode(int address, int command, int flags, byte[] frame, int offset) {
+        if ((address & ~mAddressMask) != 0 || (command & ~mCommandMask) != 0) {
+            throw new IllegalArgumentException(String.format(
+                    "%s cannot encode address 0x%x, command 0x%x", mName, address, command));
+        }
+        frame[offset] = (byte) mProtocol;
+        frame[offset + 1] = (byte) address;
+        frame[offset + 2] = (byte) (address >> 8);
+        frame[offset + 3] = (byte) command;
+        frame[offset + 4] = (byte) (command >> 8);
+        frame[offset + 5] = (byte) flags;
+    }
+
+    /**
+     * @return A new frame for one command; see {@link #encode(int, int, int, byte[], int)}.
+     */
+    byte[] encode(int address, int command, int flags) {
+        final byte[] frame = new byte[FRAME_LENGTH];
+        encode(address, command, flags, frame, 0);
+        return frame;
+    }
+
+    /**
+     * @return Return true if both are single frames that differ at most in their repetitions.
+     */
+    static boolean isSameCommand(byte[] first, byte[] second) {
+        if (first.length != FRAME_LENGTH || second.length != FRAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < FRAME_LENGTH - 1; i++) {
+            if (first[i] != second[i]) {
+                return false;
+            }
+        }
+        return ((first[5] ^ second[5]) & ~REPETITION_MASK) == 0;
+    }
+
+    /**
+     * Merges two frames of the same command into one that IRSND sends as often as both
+     * together, by adding up their repetitions.  The frames are not modified.
+     *
+     * @return The merged frame, or null if the frames are for different commands or the
+     *         repetitions do not fit into the flags.
+     */
+    static byte[] mergeRepetitions(byte[] first, byte[] second) {
+        if (!isSameCommand(first, second)) {
+            return null;
+        }
+        final int firstFlags = first[5] & 0xFF;
+        final int secondFlags = second[5] & 0xFF;
+        final int repetitions = (firstFlags & REPETITION_MASK)
+                + (secondFlags & REPETITION_MASK) + 1;
+        if (repetitions > REPETITION_MASK) {
+            return null;
+        }
+        final byte[] merged = first.clone();
+        merged[5] = (byte) (firstFlags & ~REPETITION_MASK | repetitions);
+        return merged;
+    }
+
+    /**
+     * @return The frame as protocol name, address, command and flags, or null if it is not a
+     *         single frame of a known protocol.
+     */
+    static String describe(byte[] frame) {
+        if (frame.length != FRAME_LENGTH) {
+            return null;
+        }
+        final IrEncoder encoder = forProtocol(frame[0] & 0xFF);
+        if (encoder == null) {
+            return null;
+        }
+        return String.format("%s address 0x%04x command 0x%04x flags 0x%02x", encoder.mName,
+                (frame[1] & 0xFF) | (frame[2] & 0xFF) << 8,
+                (frame[3] & 0xFF) | (frame[4] & 0xFF) << 8,
+                frame[5] & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mProtocol + ")";
+    }
+}
@@ -0,0 +1,102 @@
+package net.delta_phi.bleiremote;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Repeats the frame of a held remote control button, like the IR remote does while a key is
+ * held down.
+ *
+ * The first frame is sent when the key goes down.  After {@code initialDelayMillis} the frame
+ * is repeated every {@code intervalMillis} until the key is released.  Repeats run on the
+ * given scheduler, never on the UI thread.  A repeat is skipped while an earlier frame is
+ * still waiting in the GATT queue, so a held key never builds up a backlog and no more frames
+ * are sent after the interval in which the key was released.  The first frame of a press is
+ * always sent.
+ */
+class KeyRepeater {
+
+    /**
+     * Destination of the repeated frames.
+     */
+    interface FrameSink {
+        /**
+         * Queues a frame for sending.
+         *
+         * @param frame The frame to send.
+         * @param onComplete Run once the frame has left the queue, whether it was sent or not.
+         *
+         * @return Return true if the frame was queued.  {@code onComplete} is only run for
+         *         queued frames.
+         */
+        boolean sendFrame(byte[] frame, Runnable onComplete);
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final long mInitialDelayMillis;
+    private final long mIntervalMillis;
+
+    // Number of frames sent through this repeater that are still queued.
+    private final AtomicInteger mQueuedFrames = new AtomicInteger();
+    private final Runnable mFrameCompleted = new Runnable() {
+        @Override
+        public void run() {
+            mQueuedFrames.decrementAndGet();
+        }
+    };
+
+    private ScheduledFuture<?> mRepeat;
+
+    /**
+     * @param scheduler Executor the repeats run on.
+     * @param initialDelayMillis Time a key has to be held before it starts repeating.
+     * @param intervalMillis Time between two repeated frames.
+     */
+    KeyRepeater(ScheduledExecutorService scheduler, long initialDelayMillis,
+                long intervalMillis) {
+        mScheduler = scheduler;
+        mInitialDelayMillis = initialDelayMillis;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sends {@code frame} and starts repeating it.  A key that is still held is released
+     * first.
+     *
+     * @return Return true if the first frame was queued.
+     */
+    synchronized boolean press(final byte[] frame, final FrameSink sink) {
+        release();
+        final boolean queued = send(frame, sink);
+        mRepeat = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (mQueuedFrames.get() == 0) {
+                    send(frame, sink);
+                }
+            }
+        }, mInitialDelayMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+        return queued;
+    }
+
+    /**
+     * Stops repeating the held key, if any.
+     */
+    synchronized void release() {
+        if (mRepeat != null) {
+            mRepeat.cancel(false);
+            mRepeat = null;
+        }
+    }
+
+    private boolean send(byte[] frame, FrameSink sink) {
+        mQueuedFrames.incrementAndGet();
+        if (!sink.sendFrame(frame, mFrameCompleted)) {
+            mQueuedFrames.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
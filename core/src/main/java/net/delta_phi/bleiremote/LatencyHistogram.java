@@ -0,0 +1,131 @@
+package net.delta_phi.bleiremote;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ *
+ * Values are counted in log-linear buckets like an HDR histogram: every power of two is split
+ * into {@code SUB_BUCKETS} equal buckets, so a percentile is off by at most a quarter of its
+ * value, from a microsecond to minutes, with a fixed number of counters.  Recording is a few
+ * atomic increments and never allocates, so it is cheap enough for every GATT operation.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Covers values up to 2^40 ns, about 18 minutes.  Larger values go to the last bucket.
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Counts one duration.  Negative durations are ignored.
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        mCounts.incrementAndGet(Math.min(getBucket(nanos), BUCKET_COUNT - 1));
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMeanNanos() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : mTotalNanos.get() / count;
+    }
+
+    long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     *
+     * @return The upper bound of the bucket the percentile falls into, or 0 if nothing was
+     *         recorded.  Concurrent recording may make the result slightly inaccurate.
+     */
+    long getPercentileNanos(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(bucket), mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Forgets all recorded values.  Values recorded concurrently may be lost or kept in part.
+     */
+    void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            mCounts.set(bucket, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * @return Count, mean, median, 90th and 99th percentile and maximum in microseconds.
+     */
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + toMicros(getMeanNanos())
+                + " p50=" + toMicros(getPercentileNanos(50))
+                + " p90=" + toMicros(getPercentileNanos(90))
+                + " p99=" + toMicros(getPercentileNanos(99))
+                + " max=" + toMicros(getMaxNanos()) + " us";
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above, the bucket is given by the position
+    // of the highest set bit and the SUB_BUCKET_BITS bits below it.
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long getUpperBound(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : getLowerBound(bucket + 1) - 1;
+    }
+}
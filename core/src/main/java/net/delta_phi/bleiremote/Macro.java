@@ -0,0 +1,117 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named sequence of remote control frames, e.g. the keys that select a CD track, with the
+ * pauses the bridge has to make between them.
+ *
+ * A macro is sent as one or more packed payloads.  A payload is a sequence of 6-byte records:
+ * ordinary frames as built by {@link IrEncoder}, and delay records
+ * {@code [0x00, delay0, delay1, 0x00, 0x00, 0x00]} that ask the bridge to wait
+ * {@code delay1 << 8 | delay0} milliseconds before emitting the next frame.  Protocol
+ * number 0 is unused by the IR protocols the bridge speaks.  A bridge that acknowledges writes
+ * takes a sequence number after the records, see {@link AckTracker}.
+ */
+final class Macro {
+    static final int RECORD_LENGTH = IrEncoder.FRAME_LENGTH;
+
+    private static final byte PROTOCOL_DELAY = 0x00;
+    private static final int MAX_DELAY_MS = 0xFFFF;
+    // Upper bound of one IR frame and the gap after it, over the protocols the bridge speaks.
+    private static final long FRAME_PLAYBACK_MS = 150;
+
+    private final String mName;
+    private final byte[][] mFrames;
+    private final int[] mDelaysMillis;
+
+    /**
+     * @param name Name shown to the user.
+     * @param frames The frames to send, in order.
+     * @param delaysMillis For every frame, the pause before it is emitted.  The pause before
+     *                     the first frame is ignored.
+     */
+    Macro(String name, byte[][] frames, int[] delaysMillis) {
+        if (frames.length != delaysMillis.length) {
+            throw new IllegalArgumentException("Need one delay per frame");
+        }
+        mName = name;
+        mFrames = frames;
+        mDelaysMillis = delaysMillis;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * Packs the macro into as few payloads as possible.
+     *
+     * @param maxPayloadLength The largest write the link accepts, i.e. ATT MTU - 3.
+     *
+     * @return The payloads in the order they have to be written.
+     */
+    List<byte[]> pack(int maxPayloadLength) {
+        final int recordsPerPayload = Math.max(1, maxPayloadLength / RECORD_LENGTH);
+        final byte[] records = new byte[getRecordCount() * RECORD_LENGTH];
+        int offset = 0;
+        for (int i = 0; i < mFrames.length; ++i) {
+            final int delay = Math.min(mDelaysMillis[i], MAX_DELAY_MS);
+            if (i > 0 && delay > 0) {
+                records[offset] = PROTOCOL_DELAY;
+                records[offset + 1] = (byte) delay;
+                records[offset + 2] = (byte) (delay >> 8);
+                offset += RECORD_LENGTH;
+            }
+            System.arraycopy(mFrames[i], 0, records, offset, RECORD_LENGTH);
+            offset += RECORD_LENGTH;
+        }
+
+        final int payloadLength = recordsPerPayload * RECORD_LENGTH;
+        final List<byte[]> payloads = new ArrayList<>(records.length / payloadLength + 1);
+        for (int start = 0; start < records.length; start += payloadLength) {
+            final int length = Math.min(payloadLength, records.length - start);
+            final byte[] payload = new byte[length];
+            System.arraycopy(records, start, payload, 0, length);
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * @return The approximate time the bridge needs to emit a payload, i.e. its frames
+     *         including their repetitions and its delays.
+     */
+    static long getPlaybackMillis(byte[] payload) {
+        long millis = 0;
+        for (int offset = 0; offset + RECORD_LENGTH <= payload.length; offset += RECORD_LENGTH) {
+            if (payload[offset] == PROTOCOL_DELAY) {
+                millis += (payload[offset + 1] & 0xFF) | (payload[offset + 2] & 0xFF) << 8;
+            } else {
+                final int repetitions = payload[offset + 5] & IrEncoder.REPETITION_MASK;
+                millis += FRAME_PLAYBACK_MS * (1 + repetitions);
+            }
+        }
+        return millis;
+    }
+
+    private int getRecordCount() {
+        int count = mFrames.length;
+        for (int i = 1; i < mDelaysMillis.length; ++i) {
+            if (mDelaysMillis[i] > 0) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,27 @@
+package net.delta_phi.bleiremote;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link GattAttributeCache} that forgets the layouts when the process ends, e.g. for a
+ * benchmark run that should not touch the layouts of real bridges.
+ */
+class MemoryAttributeCache implements GattAttributeCache {
+    private final ConcurrentMap<String, Layout> mLayouts = new ConcurrentHashMap<>();
+
+    @Override
+    public Layout get(String address) {
+        return mLayouts.get(address);
+    }
+
+    @Override
+    public void put(String address, Layout layout) {
+        mLayouts.put(address, layout);
+    }
+
+    @Override
+    public void remove(String address) {
+        mLayouts.remove(address);
+    }
+}
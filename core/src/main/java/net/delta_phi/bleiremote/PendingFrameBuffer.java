@@ -0,0 +1,220 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the key frames sent to a bridge before its remote control characteristic is known,
+ * i.e. while the link is being set up or brought back.
+ *
+ * The buffer accepts up to {@code capacity} frames; when it is full, the oldest frame is
+ * dropped to make room.  Every frame carries its own time to live.  A frame that is still
+ * buffered when it expires is dropped, so a press the user has long given up on is not sent
+ * once the link is back.  {@link #drain()} hands out the remaining frames in the order they
+ * were added.
+ *
+ * Dropped frames are reported by running their completion callback, like a cancelled write.
+ */
+class PendingFrameBuffer {
+
+    /**
+     * A buffered frame.
+     */
+    static class Frame {
+        private final byte[] mValue;
+        private final boolean mKeyFrame;
+        private final Runnable mOnComplete;
+        private final long mAddedNanos;
+        private final long mDeadlineNanos;
+
+        private Frame(byte[] value, boolean keyFrame, Runnable onComplete, long addedNanos,
+                      long deadlineNanos) {
+            mValue = value;
+            mKeyFrame = keyFrame;
+            mOnComplete = onComplete;
+            mAddedNanos = addedNanos;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        byte[] getValue() {
+            return mValue;
+        }
+
+        /**
+         * @return Return true for a key frame, false for a macro payload.
+         */
+        boolean isKeyFrame() {
+            return mKeyFrame;
+        }
+
+        /**
+         * @return The callback passed to {@link #add(byte[], boolean, long, Runnable)}, may be
+         *         null.
+         */
+        Runnable getOnComplete() {
+            return mOnComplete;
+        }
+
+        /**
+         * @return The {@code System.nanoTime()} the frame was added at.
+         */
+        long getAddedNanos() {
+            return mAddedNanos;
+        }
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final int mCapacity;
+
+    // Guarded by this.
+    private final Deque<Frame> mFrames = new ArrayDeque<>();
+    private ScheduledFuture<?> mExpiry;
+    private long mBufferedCount;
+    private long mExpiredCount;
+    private long mOverflowCount;
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            final List<Frame> expired;
+            synchronized (PendingFrameBuffer.this) {
+                mExpiry = null;
+                expired = removeExpired(System.nanoTime());
+                scheduleExpiry();
+            }
+            complete(expired);
+        }
+    };
+
+    /**
+     * @param scheduler Executor used to drop frames once they expire.
+     * @param capacity Maximum number of frames held at once.
+     */
+    PendingFrameBuffer(ScheduledExecutorService scheduler, int capacity) {
+        mScheduler = scheduler;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Appends a frame.  If the buffer is full, the oldest frame is dropped.
+     *
+     * @param keyFrame True for a key frame, false for a macro payload.
+     * @param ttlMillis Time after which the frame is dropped if it has not been drained.
+     * @param onComplete Run once the frame is dropped or, after {@link #drain()}, by whoever
+     *                   sends it.
+     */
+    void add(byte[] frame, boolean keyFrame, long ttlMillis, Runnable onComplete) {
+        final Frame dropped;
+        synchronized (this) {
+            dropped = mFrames.size() >= mCapacity ? mFrames.pollFirst() : null;
+            if (dropped != null) {
+                mOverflowCount++;
+            }
+            final long now = System.nanoTime();
+            mFrames.addLast(new Frame(frame, keyFrame, onComplete, now,
+                    now + TimeUnit.MILLISECONDS.toNanos(ttlMillis)));
+            mBufferedCount++;
+            scheduleExpiry();
+        }
+        if (dropped != null && dropped.mOnComplete != null) {
+            dropped.mOnComplete.run();
+        }
+    }
+
+    /**
+     * Removes all frames.  Expired frames are dropped; the others are returned, oldest first,
+     * and the caller takes over running their completion callbacks.
+     */
+    List<Frame> drain() {
+        final List<Frame> expired;
+        final List<Frame> live;
+        synchronized (this) {
+            expired = removeExpired(System.nanoTime());
+            live = new ArrayList<>(mFrames);
+            mFrames.clear();
+            cancelExpiry();
+        }
+        complete(expired);
+        return live;
+    }
+
+    /**
+     * Drops all frames.
+     */
+    void clear() {
+        final List<Frame> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(mFrames);
+            mFrames.clear();
+            cancelExpiry();
+        }
+        complete(dropped);
+    }
+
+    /**
+     * @return The number of frames currently held.
+     */
+    synchronized int size() {
+        return mFrames.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PendingFrameBuffer{size=" + mFrames.size()
+                + ", buffered=" + mBufferedCount
+                + ", expired=" + mExpiredCount
+                + ", overflowed=" + mOverflowCount
+                + "}";
+    }
+
+    // Must be called with the lock held.  Frames do not expire in order, since their time to
+    // live differs, so the whole buffer is checked.
+    private List<Frame> removeExpired(long now) {
+        final List<Frame> expired = new ArrayList<>();
+        for (Frame frame : mFrames) {
+            if (frame.mDeadlineNanos - now <= 0) {
+                expired.add(frame);
+            }
+        }
+        mFrames.removeAll(expired);
+        mExpiredCount += expired.size();
+        return expired;
+    }
+
+    // Must be called with the lock held.  Arms the expiry for the earliest deadline.
+    private void scheduleExpiry() {
+        if (mFrames.isEmpty()) {
+            return;
+        }
+        long deadline = Long.MAX_VALUE;
+        for (Frame frame : mFrames) {
+            if (deadline == Long.MAX_VALUE || frame.mDeadlineNanos - deadline < 0) {
+                deadline = frame.mDeadlineNanos;
+            }
+        }
+        cancelExpiry();
+        mExpiry = mScheduler.schedule(mExpire,
+                Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+    }
+
+    // Must be called with the lock held.
+    private void cancelExpiry() {
+        if (mExpiry != null) {
+            mExpiry.cancel(false);
+            mExpiry = null;
+        }
+    }
+
+    private static void complete(List<Frame> frames) {
+        for (Frame frame : frames) {
+            if (frame.mOnComplete != null) {
+                frame.mOnComplete.run();
+            }
+        }
+    }
+}
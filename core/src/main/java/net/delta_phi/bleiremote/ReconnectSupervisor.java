@@ -0,0 +1,246 @@
+package net.delta_phi.bleiremote;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings a lost connection back without waiting for the user.
+ *
+ * When the link drops, reconnect attempts are made with jittered exponential backoff.  Every
+ * attempt gets {@code attemptTimeoutMillis} to succeed before it is cancelled and the next one
+ * is scheduled.  After {@code maxAttempts} failed attempts the supervisor either gives up or,
+ * in background mode, leaves one attempt pending without a timeout so the controller connects
+ * whenever the device shows up again.  A background attempt that fails or cannot be started
+ * is re-armed after the maximum backoff, so a stack that keeps failing it is not hammered.
+ *
+ * The supervisor also measures the time from losing the link to the first command completed
+ * on the new one.
+ */
+class ReconnectSupervisor {
+
+    /**
+     * Makes the actual connection attempts.
+     */
+    interface Reconnector {
+        /**
+         * Starts a connection attempt.
+         *
+         * @param background True if the attempt should stay pending until the device is in
+         *                   range, i.e. use autoConnect.
+         *
+         * @return Return true if the attempt was started.
+         */
+        boolean reconnect(boolean background);
+
+        /**
+         * Cancels the pending connection attempt.
+         */
+        void cancelReconnect();
+    }
+
+    private final ScheduledExecutorService mScheduler;
+    private final Reconnector mReconnector;
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final long mAttemptTimeoutMillis;
+    private final int mMaxAttempts;
+    private final Random mRandom = new Random();
+
+    private boolean mBackgroundModeEnabled;
+    // Whether the link should be kept up, i.e. it was connected and not released on purpose.
+    private boolean mSupervising;
+    private int mAttempt;
+    private ScheduledFuture<?> mPendingAttempt;
+    private ScheduledFuture<?> mAttemptTimeout;
+
+    // Time-to-first-command measurement.
+    private long mLostNanos;
+    private boolean mAwaitingFirstCommand;
+    private long mLastTimeToFirstCommandNanos;
+    private int mReconnectCount;
+
+    /**
+     * @param scheduler Executor the attempts are scheduled on.
+     * @param reconnector Makes the connection attempts.
+     * @param initialDelayMillis Backoff before the first attempt.
+     * @param maxDelayMillis Upper bound for the backoff.
+     * @param attemptTimeoutMillis Time an attempt gets to succeed.
+     * @param maxAttempts Number of attempts before giving up or going to background mode.
+     */
+    ReconnectSupervisor(ScheduledExecutorService scheduler, Reconnector reconnector,
+                        long initialDelayMillis, long maxDelayMillis,
+                        long attemptTimeoutMillis, int maxAttempts) {
+        mScheduler = scheduler;
+        mReconnector = reconnector;
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mAttemptTimeoutMillis = attemptTimeoutMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Enables the background mode: once the attempts are used up, one attempt with autoConnect
+     * stays pending instead of giving up.
+     */
+    synchronized void setBackgroundModeEnabled(boolean enabled) {
+        mBackgroundModeEnabled = enabled;
+    }
+
+    /**
+     * Reports an established connection.  From now on a lost link is brought back.
+     *
+     * @return Return true if the connection was made by a reconnect attempt.
+     */
+    synchronized boolean onConnected() {
+        cancelScheduled();
+        final boolean reconnected = mAttempt > 0;
+        if (reconnected) {
+            mReconnectCount++;
+        }
+        mAttempt = 0;
+        mSupervising = true;
+        return reconnected;
+    }
+
+    /**
+     * Reports a lost link or a failed connection attempt and schedules the next attempt.
+     */
+    synchronized void onConnectionLost() {
+        if (!mSupervising || mPendingAttempt != null) {
+            // Not supervising, or the failure was already reported and the next attempt is
+            // scheduled.
+            return;
+        }
+        cancelScheduled();
+        if (!mAwaitingFirstCommand) {
+            mLostNanos = System.nanoTime();
+            mAwaitingFirstCommand = true;
+        }
+        scheduleAttempt();
+    }
+
+    /**
+     * Reports a completed command.  The first one after a reconnect ends the
+     * time-to-first-command measurement.
+     *
+     * @return Return the time from losing the link to this command, or -1 if this is not the
+     *         first command after a reconnect.
+     */
+    synchronized long onCommandCompleted() {
+        if (!mAwaitingFirstCommand) {
+            return -1;
+        }
+        mAwaitingFirstCommand = false;
+        mLastTimeToFirstCommandNanos = System.nanoTime() - mLostNanos;
+        return mLastTimeToFirstCommandNanos;
+    }
+
+    /**
+     * Stops bringing the link back, e.g. because the user disconnected.
+     */
+    synchronized void stop() {
+        cancelScheduled();
+        mSupervising = false;
+        mAwaitingFirstCommand = false;
+        mAttempt = 0;
+    }
+
+    synchronized long getLastTimeToFirstCommandNanos() {
+        return mLastTimeToFirstCommandNanos;
+    }
+
+    synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReconnectSupervisor{supervising=" + mSupervising
+                + ", attempt=" + mAttempt
+                + ", reconnects=" + mReconnectCount
+                + ", lastTimeToFirstCommandMs="
+                + TimeUnit.NANOSECONDS.toMillis(mLastTimeToFirstCommandNanos)
+                + "}";
+    }
+
+    // Must be called with the lock held.
+    private void scheduleAttempt() {
+        if (mAttempt >= mMaxAttempts) {
+            if (mBackgroundModeEnabled) {
+                mPendingAttempt = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        backgroundAttempt();
+                    }
+                }, jitter(mMaxDelayMillis), TimeUnit.MILLISECONDS);
+            } else {
+                mSupervising = false;
+                mAwaitingFirstCommand = false;
+            }
+            return;
+        }
+
+        final long backoff = Math.min(mMaxDelayMillis, mInitialDelayMillis << mAttempt);
+        mAttempt++;
+        mPendingAttempt = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt();
+            }
+        }, jitter(backoff), TimeUnit.MILLISECONDS);
+    }
+
+    // Equal jitter: half of the backoff is fixed, the other half random, so that attempts
+    // neither cluster nor collapse to zero.
+    private long jitter(long backoff) {
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            mPendingAttempt = null;
+            if (!mSupervising) {
+                return;
+            }
+            mAttemptTimeout = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (ReconnectSupervisor.this) {
+                        mAttemptTimeout = null;
+                    }
+                    mReconnector.cancelReconnect();
+                    onConnectionLost();
+                }
+            }, mAttemptTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (!mReconnector.reconnect(false)) {
+            onConnectionLost();
+        }
+    }
+
+    private void backgroundAttempt() {
+        synchronized (this) {
+            mPendingAttempt = null;
+            if (!mSupervising) {
+                return;
+            }
+        }
+        if (!mReconnector.reconnect(true)) {
+            onConnectionLost();
+        }
+    }
+
+    // Must be called with the lock held.
+    private void cancelScheduled() {
+        if (mPendingAttempt != null) {
+            mPendingAttempt.cancel(false);
+            mPendingAttempt = null;
+        }
+        if (mAttemptTimeout != null) {
+            mAttemptTimeout.cancel(false);
+            mAttemptTimeout = null;
+        }
+    }
+}
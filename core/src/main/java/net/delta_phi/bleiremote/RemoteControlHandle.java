@@ -0,0 +1,92 @@
+package net.delta_phi.bleiremote;
+
+import java.util.UUID;
+
+/**
+ * The remote control service and command characteristic of a connected BLE-IR bridge,
+ * resolved once after service discovery.
+ *
+ * A handle belongs to one connection.  {@link BridgeConnection} invalidates it when that
+ * connection goes away; an invalid handle must not be used for writes any more.
+ *
+ * A bridge whose command characteristic notifies acknowledges the frames it emitted, see
+ * {@link AckTracker}.  It does so once notification is enabled through the Client
+ * Characteristic Configuration descriptor.
+ */
+class RemoteControlHandle {
+    final static UUID UUID_REMOTE_CONTROL_SERVICE =
+            UUID.fromString(SampleGattAttributes.REMOTE_CONTROL_SERVICE);
+    final static UUID UUID_REMOTE_CONTROL_COMMAND =
+            UUID.fromString(SampleGattAttributes.REMOTE_CONTROL_COMMAND);
+    final static UUID UUID_CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    private final GattTransport.Service mService;
+    private final GattTransport.Characteristic mCommandCharacteristic;
+    private final int mWriteType;
+    private final GattTransport.Descriptor mClientConfiguration;
+    private volatile boolean mValid = true;
+
+    private RemoteControlHandle(GattTransport.Service service,
+                                GattTransport.Characteristic commandCharacteristic) {
+        mService = service;
+        mCommandCharacteristic = commandCharacteristic;
+        mWriteType = (commandCharacteristic.getProperties()
+                & GattTransport.Characteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                ? GattTransport.Characteristic.WRITE_TYPE_NO_RESPONSE
+                : GattTransport.Characteristic.WRITE_TYPE_DEFAULT;
+        mClientConfiguration = (commandCharacteristic.getProperties()
+                & GattTransport.Characteristic.PROPERTY_NOTIFY) != 0
+                ? commandCharacteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG)
+                : null;
+    }
+
+    /**
+     * Looks up the remote control characteristic in the discovered services of {@code transport}.
+     *
+     * @return The handle, or null if the device does not offer the remote control service.
+     */
+    static RemoteControlHandle resolve(GattTransport transport) {
+        final GattTransport.Service service = transport.getService(UUID_REMOTE_CONTROL_SERVICE);
+        if (service == null) {
+            return null;
+        }
+        final GattTransport.Characteristic characteristic = service.getCharacteristic(
+                UUID_REMOTE_CONTROL_COMMAND);
+        if (characteristic == null) {
+            return null;
+        }
+        return new RemoteControlHandle(service, characteristic);
+    }
+
+    GattTransport.Service getService() {
+        return mService;
+    }
+
+    GattTransport.Characteristic getCommandCharacteristic() {
+        return mCommandCharacteristic;
+    }
+
+    /**
+     * @return The write type for key frames: without response if the bridge supports it.
+     */
+    int getWriteType() {
+        return mWriteType;
+    }
+
+    /**
+     * @return The descriptor that enables acknowledgements, or null if the bridge does not
+     *         acknowledge frames.
+     */
+    GattTransport.Descriptor getClientConfiguration() {
+        return mClientConfiguration;
+    }
+
+    boolean isValid() {
+        return mValid;
+    }
+
+    void invalidate() {
+        mValid = false;
+    }
+}
@@ -25,14 +25,22 @@ public class SampleGattAttributes {
     private static HashMap<String, String> attributes = new HashMap();
     public static String HEART_RATE_MEASUREMENT = "00002a37-0000-1000-8000-00805f9b34fb";
     public static String CLIENT_CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    public static String GENERIC_ATTRIBUTE_SERVICE = "00001801-0000-1000-8000-00805f9b34fb";
+    public static String DATABASE_HASH = "00002b2a-0000-1000-8000-00805f9b34fb";
+    public static String REMOTE_CONTROL_SERVICE = "91848fa3-850c-4057-b0fc-d49a10738a1b";
+    public static String REMOTE_CONTROL_COMMAND = "9184addc-850c-4057-b0fc-d49a10738a1b";
 
     static {
         // Sample Services.
         attributes.put("0000180d-0000-1000-8000-00805f9b34fb", "Heart Rate Service");
         attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information Service");
+        attributes.put(GENERIC_ATTRIBUTE_SERVICE, "Generic Attribute Service");
+        attributes.put(REMOTE_CONTROL_SERVICE, "BLE-IR Remote Control Service");
         // Sample Characteristics.
         attributes.put(HEART_RATE_MEASUREMENT, "Heart Rate Measurement");
         attributes.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name String");
+        attributes.put(DATABASE_HASH, "Database Hash");
+        attributes.put(REMOTE_CONTROL_COMMAND, "BLE-IR Remote Control Command");
     }
 
     public static String lookup(String uuid, String defaultName) {
@@ -0,0 +1,600 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link GattTransport} that plays a BLE-IR bridge without a radio.
+ *
+ * The peer offers the remote control service and a Database Hash, like the bridge firmware.
+ * Timing follows the connection interval of the requested connection priority: a request is
+ * answered at the next connection event, at most {@code PACKETS_PER_EVENT} packets go out per
+ * event, and a write with response takes one more event for the response.  Connecting,
+ * service discovery, the MTU the peer accepts and the share of failed writes come from a
+ * {@link Script}; failures are drawn from a random generator seeded by the script, so a run
+ * fails the same writes every time.  {@link #dropLink()} drops the link like a peer going out
+ * of range.
+ *
+ * The command characteristic takes writes with and without response, unless the script
+ * limits it to writes with response, like older bridge firmware.
+ *
+ * A script may make the peer acknowledge frames, see {@link AckTracker}: the command
+ * characteristic then notifies, and once notification is enabled, every write in the
+ * acknowledged form is emitted after the ones before it, taking the time
+ * {@link Macro#getPlaybackMillis(byte[])} like the bridge, and its sequence number is
+ * notified at the next connection event.  A share of the notifications is lost.  A write with
+ * a sequence number that is still being emitted or was acknowledged recently is a
+ * retransmission; it is acknowledged again, but not emitted twice.
+ *
+ * Callbacks are made on the executor given to the factory.
+ */
+class SimulatedGattPeer implements GattTransport {
+    private final static String TAG = SimulatedGattPeer.class.getSimpleName();
+
+    private static final int PACKETS_PER_EVENT = 4;
+    private static final int DEFAULT_MTU = 23;
+    private static final int DATABASE_HASH_LENGTH = 16;
+    // Status the stack reports when the supervision timeout expires.
+    private static final int STATUS_CONNECTION_TIMEOUT = 8;
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+
+    // Sequence numbers the peer remembers as acknowledged, like the bridge firmware.  Half of
+    // the numbers, the most the client has in use at once.
+    private static final int SEQUENCE_COUNT = 256;
+    private static final int ACKNOWLEDGED_WINDOW = SEQUENCE_COUNT / 2;
+    private static final int SEQUENCE_FREE = 0;
+    private static final int SEQUENCE_EMITTING = 1;
+    private static final int SEQUENCE_ACKNOWLEDGED = 2;
+
+    private static final UUID UUID_DATABASE_HASH =
+            UUID.fromString(SampleGattAttributes.DATABASE_HASH);
+
+    /**
+     * The behaviour of a simulated bridge.
+     */
+    static class Script {
+        private final long mSeed;
+        private final long mConnectDelayMillis;
+        private final long mDiscoveryDelayMillis;
+        private final int mMtu;
+        private final float mFailureRate;
+        private final boolean mWriteNoResponse;
+        private final boolean mAcknowledged;
+        private final float mAckLossRate;
+
+        /**
+         * Creates a script for a bridge that does not acknowledge frames.
+         *
+         * @param seed        Seeds the failures and the Database Hash.
+         * @param mtu         The largest MTU the peer accepts.
+         * @param failureRate The share of writes that fail, between 0 and 1.
+         */
+        Script(long seed, long connectDelayMillis, long discoveryDelayMillis, int mtu,
+               float failureRate) {
+            this(seed, connectDelayMillis, discoveryDelayMillis, mtu, failureRate, true, false,
+                    0);
+        }
+
+        private Script(long seed, long connectDelayMillis, long discoveryDelayMillis, int mtu,
+                       float failureRate, boolean writeNoResponse, boolean acknowledged,
+                       float ackLossRate) {
+            mSeed = seed;
+            mConnectDelayMillis = connectDelayMillis;
+            mDiscoveryDelayMillis = discoveryDelayMillis;
+            mMtu = mtu;
+            mFailureRate = failureRate;
+            mWriteNoResponse = writeNoResponse;
+            mAcknowledged = acknowledged;
+            mAckLossRate = ackLossRate;
+        }
+
+        /**
+         * @param ackLossRate The share of acknowledgements that are lost, between 0 and 1.
+         *
+         * @return A copy of this script for a bridge that acknowledges frames.
+         */
+        Script withAcknowledgements(float ackLossRate) {
+            return new Script(mSeed, mConnectDelayMillis, mDiscoveryDelayMillis, mMtu,
+                    mFailureRate, mWriteNoResponse, true, ackLossRate);
+        }
+
+        /**
+         * @return A copy of this script for a bridge that only takes writes with response.
+         */
+        Script withoutWriteNoResponse() {
+            return new Script(mSeed, mConnectDelayMillis, mDiscoveryDelayMillis, mMtu,
+                    mFailureRate, false, mAcknowledged, mAckLossRate);
+        }
+
+        long getSeed() {
+            return mSeed;
+        }
+
+        @Override
+        public String toString() {
+            return "seed=" + mSeed + ", connect=" + mConnectDelayMillis + " ms, discovery="
+                    + mDiscoveryDelayMillis + " ms, mtu=" + mMtu + ", failures=" + mFailureRate
+                    + (mWriteNoResponse ? "" : ", with response only")
+                    + (mAcknowledged ? ", ack loss=" + mAckLossRate : "");
+        }
+    }
+
+    /**
+     * Opens simulated peers that follow one script.  All peers share the executor.
+     */
+    static class Factory implements GattTransport.Factory {
+        private final Script mScript;
+        private final ScheduledExecutorService mExecutor;
+        private volatile SimulatedGattPeer mLastPeer;
+
+        Factory(Script script, ScheduledExecutorService executor) {
+            mScript = script;
+            mExecutor = executor;
+        }
+
+        @Override
+        public GattTransport open(String address, boolean autoConnect, Callback callback) {
+            final SimulatedGattPeer peer = new SimulatedGattPeer(mScript, mExecutor, callback);
+            GattLog.d(TAG, "Opening simulated " + address + ", autoConnect=" + autoConnect);
+            mLastPeer = peer;
+            peer.connect();
+            return peer;
+        }
+
+        /**
+         * @return The peer opened last, or null.
+         */
+        SimulatedGattPeer getLastPeer() {
+            return mLastPeer;
+        }
+    }
+
+    private final Script mScript;
+    private final ScheduledExecutorService mExecutor;
+    private final Callback mCallback;
+    private final Random mRandom;
+    private final byte[] mDatabaseHash = new byte[DATABASE_HASH_LENGTH];
+    private final List<Service> mServices;
+
+    // Guarded by this.  Callbacks scheduled for an earlier link, i.e. before the link was
+    // dropped, disconnected or closed, are discarded by comparing the link number.
+    private int mState = STATE_DISCONNECTED;
+    private int mLink;
+    private boolean mClosed;
+    private boolean mDiscovered;
+    private boolean mResponsePending;
+    private long mIntervalNanos = intervalNanos(CONNECTION_PRIORITY_BALANCED);
+    private long mAnchorNanos;
+    private long mEventNanos;
+    private int mEventPackets;
+    private long mReceivedWrites;
+    // The acknowledgement state of the bridge.  Notification is disabled by every new link.
+    private boolean mNotifying;
+    private long mEmitterFreeNanos;
+    private final int[] mSequenceStates = new int[SEQUENCE_COUNT];
+    private final ArrayDeque<Integer> mAcknowledgedSequences = new ArrayDeque<>();
+    private long mEmittedPayloads;
+    private long mRetransmissions;
+    private long mAcknowledgements;
+    private long mLostAcknowledgements;
+
+    private SimulatedGattPeer(Script script, ScheduledExecutorService executor,
+                              Callback callback) {
+        mScript = script;
+        mExecutor = executor;
+        mCallback = callback;
+        mRandom = new Random(script.mSeed);
+        mRandom.nextBytes(mDatabaseHash);
+
+        final Service genericAttribute = new Service(
+                UUID.fromString(SampleGattAttributes.GENERIC_ATTRIBUTE_SERVICE));
+        genericAttribute.addCharacteristic(UUID_DATABASE_HASH,
+                Characteristic.PROPERTY_READ);
+        final Service remoteControl = new Service(
+                RemoteControlHandle.UUID_REMOTE_CONTROL_SERVICE);
+        final Characteristic command = remoteControl.addCharacteristic(
+                RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND,
+                Characteristic.PROPERTY_WRITE
+                        | (script.mWriteNoResponse ? Characteristic.PROPERTY_WRITE_NO_RESPONSE : 0)
+                        | (script.mAcknowledged ? Characteristic.PROPERTY_NOTIFY : 0));
+        if (script.mAcknowledged) {
+            command.addDescriptor(RemoteControlHandle.UUID_CLIENT_CHARACTERISTIC_CONFIG);
+        }
+        final List<Service> services = new ArrayList<>();
+        services.add(genericAttribute);
+        services.add(remoteControl);
+        mServices = Collections.unmodifiableList(services);
+    }
+
+    /**
+     * Drops the link without a disconnect from either side.  The client learns about it with
+     * a connection timeout, as when the bridge goes out of range.
+     */
+    synchronized void dropLink() {
+        if (mClosed || mState == STATE_DISCONNECTED) {
+            return;
+        }
+        GattLog.d(TAG, "Dropping link");
+        disconnected(STATUS_CONNECTION_TIMEOUT, 0);
+    }
+
+    /**
+     * @return The number of writes the peer received, including failed ones.
+     */
+    synchronized long getReceivedWrites() {
+        return mReceivedWrites;
+    }
+
+    /**
+     * @return The number of payloads in the acknowledged form the peer emitted, not counting
+     *         retransmissions.
+     */
+    synchronized long getEmittedPayloads() {
+        return mEmittedPayloads;
+    }
+
+    /**
+     * @return The number of writes the peer recognized as retransmissions.
+     */
+    synchronized long getRetransmissions() {
+        return mRetransmissions;
+    }
+
+    /**
+     * @return The number of acknowledgements the peer notified, not counting lost ones.
+     */
+    synchronized long getAcknowledgements() {
+        return mAcknowledgements;
+    }
+
+    /**
+     * @return The number of acknowledgements the script made the peer lose.
+     */
+    synchronized long getLostAcknowledgements() {
+        return mLostAcknowledgements;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        if (mClosed) {
+            return false;
+        }
+        if (mState != STATE_DISCONNECTED) {
+            return true;
+        }
+        mState = STATE_CONNECTING;
+        final int link = ++mLink;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    if (link != mLink || mClosed) {
+                        return;
+                    }
+                    mState = STATE_CONNECTED;
+                    mIntervalNanos = intervalNanos(CONNECTION_PRIORITY_BALANCED);
+                    mAnchorNanos = System.nanoTime();
+                    mEventNanos = mAnchorNanos;
+                    mEventPackets = 0;
+                    mResponsePending = false;
+                    mNotifying = false;
+                }
+                mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_CONNECTED);
+            }
+        }, mScript.mConnectDelayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        if (mClosed || mState == STATE_DISCONNECTED) {
+            return;
+        }
+        disconnected(GATT_SUCCESS, mState == STATE_CONNECTED ? mIntervalNanos : 0);
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mState = STATE_DISCONNECTED;
+        mLink++;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu) {
+        if (mState != STATE_CONNECTED) {
+            return false;
+        }
+        final int accepted = Math.max(DEFAULT_MTU, Math.min(mtu, mScript.mMtu));
+        respond(nextEventNanos() + mIntervalNanos, new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onMtuChanged(accepted, GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestConnectionPriority(int priority) {
+        if (mState != STATE_CONNECTED) {
+            return false;
+        }
+        // The new parameters take effect at the next connection event.
+        final long now = System.nanoTime();
+        mAnchorNanos = now + nextEventNanos();
+        mEventNanos = mAnchorNanos;
+        mEventPackets = 0;
+        mIntervalNanos = intervalNanos(priority);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if (mState != STATE_CONNECTED) {
+            return false;
+        }
+        respond(TimeUnit.MILLISECONDS.toNanos(mScript.mDiscoveryDelayMillis), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    mDiscovered = true;
+                }
+                mCallback.onServicesDiscovered(GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized Service getService(UUID uuid) {
+        if (!mDiscovered) {
+            return null;
+        }
+        for (Service service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized List<Service> getServices() {
+        return mDiscovered ? mServices : Collections.<Service>emptyList();
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(final Characteristic characteristic) {
+        if (mState != STATE_CONNECTED || mResponsePending) {
+            return false;
+        }
+        final boolean isDatabaseHash = UUID_DATABASE_HASH.equals(characteristic.getUuid());
+        mResponsePending = true;
+        respond(nextEventNanos() + mIntervalNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    mResponsePending = false;
+                }
+                mCallback.onCharacteristicRead(characteristic.getUuid(),
+                        isDatabaseHash ? mDatabaseHash.clone() : null,
+                        isDatabaseHash ? GATT_SUCCESS : GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(final Characteristic characteristic,
+                                                    byte[] value, int writeType) {
+        final boolean withResponse = writeType != Characteristic.WRITE_TYPE_NO_RESPONSE;
+        if (mState != STATE_CONNECTED || (withResponse && mResponsePending)) {
+            return false;
+        }
+        mReceivedWrites++;
+        final int status = mRandom.nextFloat() < mScript.mFailureRate
+                ? GATT_FAILURE : GATT_SUCCESS;
+        mResponsePending |= withResponse;
+        final long arrivalNanos = nextEventNanos();
+        if (status == GATT_SUCCESS
+                && RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND.equals(
+                        characteristic.getUuid())) {
+            receiveFrame(value.clone(), arrivalNanos);
+        }
+        respond(arrivalNanos + (withResponse ? mIntervalNanos : 0), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    if (withResponse) {
+                        mResponsePending = false;
+                    }
+                }
+                mCallback.onCharacteristicWrite(characteristic.getUuid(), status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(final Descriptor descriptor, byte[] value) {
+        if (mState != STATE_CONNECTED || mResponsePending) {
+            return false;
+        }
+        final boolean enable = Arrays.equals(Descriptor.ENABLE_NOTIFICATION_VALUE, value);
+        mResponsePending = true;
+        respond(nextEventNanos() + mIntervalNanos, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    mResponsePending = false;
+                    if (mScript.mAcknowledged && descriptor.getUuid().equals(
+                            RemoteControlHandle.UUID_CLIENT_CHARACTERISTIC_CONFIG)) {
+                        mNotifying = enable;
+                    }
+                }
+                mCallback.onDescriptorWrite(descriptor.getUuid(), GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(Characteristic characteristic,
+                                                 boolean enabled) {
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimulatedGattPeer{state=" + mState + ", writes=" + mReceivedWrites
+                + ", emitted=" + mEmittedPayloads + ", retransmissions=" + mRetransmissions
+                + ", acks=" + mAcknowledgements + ", lost acks=" + mLostAcknowledgements
+                + ", " + mScript + "}";
+    }
+
+    // Takes a write to the command characteristic that arrives after arrivalNanos.  Only
+    // writes in the acknowledged form, i.e. whole records and a sequence number, are
+    // acknowledged, and only while notification is enabled.  Caller holds the lock.
+    private void receiveFrame(byte[] value, long arrivalNanos) {
+        if (!mNotifying
+                || value.length % Macro.RECORD_LENGTH != AckTracker.SEQUENCE_LENGTH) {
+            return;
+        }
+        final int sequence = value[value.length - 1] & 0xFF;
+        final int state = mSequenceStates[sequence];
+        if (state == SEQUENCE_EMITTING) {
+            // Acknowledged once the first copy is emitted.
+            mRetransmissions++;
+            return;
+        }
+        if (state == SEQUENCE_ACKNOWLEDGED) {
+            mRetransmissions++;
+            acknowledge(sequence, arrivalNanos);
+            return;
+        }
+        final long startNanos = Math.max(System.nanoTime() + arrivalNanos, mEmitterFreeNanos);
+        mEmitterFreeNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(Macro.getPlaybackMillis(
+                Arrays.copyOf(value, value.length - AckTracker.SEQUENCE_LENGTH)));
+        mSequenceStates[sequence] = SEQUENCE_EMITTING;
+        mEmittedPayloads++;
+        acknowledge(sequence, mEmitterFreeNanos - System.nanoTime());
+    }
+
+    // Notifies the sequence number at the first connection event after delayNanos, unless the
+    // script makes the notification get lost.  Caller holds the lock.
+    private void acknowledge(final int sequence, long delayNanos) {
+        final int link = mLink;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    if (link != mLink || mState != STATE_CONNECTED) {
+                        return;
+                    }
+                    if (mSequenceStates[sequence] == SEQUENCE_EMITTING) {
+                        mSequenceStates[sequence] = SEQUENCE_ACKNOWLEDGED;
+                        mAcknowledgedSequences.add(sequence);
+                        if (mAcknowledgedSequences.size() > ACKNOWLEDGED_WINDOW) {
+                            mSequenceStates[mAcknowledgedSequences.remove()] = SEQUENCE_FREE;
+                        }
+                    }
+                    if (mRandom.nextFloat() < mScript.mAckLossRate) {
+                        mLostAcknowledgements++;
+                        return;
+                    }
+                    mAcknowledgements++;
+                    respond(nextEventNanos(), new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onCharacteristicChanged(
+                                    RemoteControlHandle.UUID_REMOTE_CONTROL_COMMAND,
+                                    new byte[]{(byte) sequence});
+                        }
+                    });
+                }
+            }
+        }, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    // Ends the current link and reports it after delayNanos.  Frames being emitted are lost
+    // with the link.  Caller holds the lock.
+    private void disconnected(final int status, long delayNanos) {
+        mState = STATE_DISCONNECTED;
+        mResponsePending = false;
+        mNotifying = false;
+        for (int sequence = 0; sequence < SEQUENCE_COUNT; sequence++) {
+            if (mSequenceStates[sequence] == SEQUENCE_EMITTING) {
+                mSequenceStates[sequence] = SEQUENCE_FREE;
+            }
+        }
+        final int link = ++mLink;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    if (link != mLink || mClosed) {
+                        return;
+                    }
+                }
+                mCallback.onConnectionStateChange(status, STATE_DISCONNECTED);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Runs callback after delayNanos unless the link is gone by then.  Caller holds the lock.
+    private void respond(long delayNanos, final Runnable callback) {
+        final int link = mLink;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGattPeer.this) {
+                    if (link != mLink || mState != STATE_CONNECTED) {
+                        return;
+                    }
+                }
+                callback.run();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Reserves a packet in the next connection event with room, and returns the time until
+    // that event.  A response to the packet goes out one interval later.  Caller holds the
+    // lock.
+    private long nextEventNanos() {
+        final long now = System.nanoTime();
+        if (mEventNanos < now) {
+            final long elapsed = now - mAnchorNanos;
+            mEventNanos = mAnchorNanos + (elapsed / mIntervalNanos + 1) * mIntervalNanos;
+            mEventPackets = 0;
+        }
+        if (mEventPackets == PACKETS_PER_EVENT) {
+            mEventNanos += mIntervalNanos;
+            mEventPackets = 0;
+        }
+        mEventPackets++;
+        return mEventNanos - now;
+    }
+
+    // The middle of the interval range Android requests for each priority.
+    private static long intervalNanos(int priority) {
+        switch (priority) {
+            case CONNECTION_PRIORITY_HIGH:
+                return 11250000;
+            case CONNECTION_PRIORITY_LOW_POWER:
+                return 112500000;
+            default:
+                return 40000000;
+        }
+    }
+}
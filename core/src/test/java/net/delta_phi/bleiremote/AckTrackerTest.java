@@ -0,0 +1,184 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AckTrackerTest {
+
+    private static final long TIMEOUT_MS = 1000;
+    private static final int MAX_RETRANSMISSIONS = 2;
+    private static final int SEQUENCE_COUNT = 256;
+    private static final int WINDOW = SEQUENCE_COUNT / 2;
+
+    private ManualScheduler mScheduler;
+    private AckTracker mTracker;
+
+    private static class FakeWrite implements AckTracker.Callback {
+        boolean mRetransmit = true;
+        int mAcknowledged;
+        int mRetransmissions;
+        int mUnacknowledged;
+
+        @Override
+        public void onAcknowledged(long latencyNanos) {
+            mAcknowledged++;
+        }
+
+        @Override
+        public boolean retransmit() {
+            mRetransmissions++;
+            return mRetransmit;
+        }
+
+        @Override
+        public void onUnacknowledged() {
+            mUnacknowledged++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mTracker = new AckTracker(mScheduler, TIMEOUT_MS, MAX_RETRANSMISSIONS);
+    }
+
+    private void acknowledge(int sequence) {
+        mTracker.onNotification(new byte[] {(byte) sequence});
+    }
+
+    @Test
+    public void acknowledgementCompletesWrite() {
+        final FakeWrite write = new FakeWrite();
+        final int sequence = mTracker.allocate(write);
+        mTracker.onSent(sequence, 0);
+        assertEquals(1, mTracker.getOutstanding());
+
+        acknowledge(sequence);
+        assertEquals(1, write.mAcknowledged);
+        assertEquals(0, mTracker.getOutstanding());
+        assertEquals(0, mScheduler.getPendingCount());
+
+        // A second acknowledgement, e.g. of a retransmission, is ignored.
+        acknowledge(sequence);
+        assertEquals(1, write.mAcknowledged);
+    }
+
+    @Test
+    public void notificationMayCarrySeveralSequences() {
+        final FakeWrite first = new FakeWrite();
+        final FakeWrite second = new FakeWrite();
+        final int firstSequence = mTracker.allocate(first);
+        final int secondSequence = mTracker.allocate(second);
+        mTracker.onNotification(new byte[] {(byte) secondSequence, (byte) firstSequence});
+        assertEquals(1, first.mAcknowledged);
+        assertEquals(1, second.mAcknowledged);
+    }
+
+    @Test
+    public void sequencesWrapAround() {
+        for (int i = 0; i < SEQUENCE_COUNT - 1; i++) {
+            final int sequence = mTracker.allocate(new FakeWrite());
+            assertEquals(i, sequence);
+            acknowledge(sequence);
+        }
+        assertEquals(255, mTracker.allocate(new FakeWrite()));
+        final FakeWrite wrapped = new FakeWrite();
+        assertEquals(0, mTracker.allocate(wrapped));
+        acknowledge(0);
+        assertEquals(1, wrapped.mAcknowledged);
+        // 255 is still outstanding; 0 is not.
+        assertEquals(1, mTracker.getOutstanding());
+    }
+
+    @Test
+    public void outstandingSequencesAreSkippedAfterWrapAround() {
+        final int held = mTracker.allocate(new FakeWrite());
+        for (int i = 1; i < SEQUENCE_COUNT; i++) {
+            acknowledge(mTracker.allocate(new FakeWrite()));
+        }
+        assertEquals(held + 1, mTracker.allocate(new FakeWrite()));
+    }
+
+    @Test
+    public void windowLimitsOutstandingWrites() {
+        for (int i = 0; i < WINDOW; i++) {
+            assertEquals(i, mTracker.allocate(new FakeWrite()));
+        }
+        assertEquals(-1, mTracker.allocate(new FakeWrite()));
+        acknowledge(0);
+        assertEquals(WINDOW, mTracker.allocate(new FakeWrite()));
+    }
+
+    @Test
+    public void retransmitsUntilLimitThenGivesUp() {
+        final FakeWrite write = new FakeWrite();
+        final int sequence = mTracker.allocate(write);
+        mTracker.onSent(sequence, 0);
+        for (int i = 1; i <= MAX_RETRANSMISSIONS; i++) {
+            mScheduler.advance(TIMEOUT_MS);
+            assertEquals(i, write.mRetransmissions);
+            // The write is on its way again.
+            mTracker.onSent(sequence, 0);
+        }
+        mScheduler.advance(TIMEOUT_MS);
+        assertEquals(MAX_RETRANSMISSIONS, write.mRetransmissions);
+        assertEquals(1, write.mUnacknowledged);
+        assertEquals(0, write.mAcknowledged);
+        assertEquals(0, mTracker.getOutstanding());
+    }
+
+    @Test
+    public void acknowledgementOfRetransmissionCompletesWrite() {
+        final FakeWrite write = new FakeWrite();
+        final int sequence = mTracker.allocate(write);
+        mTracker.onSent(sequence, 0);
+        mScheduler.advance(TIMEOUT_MS);
+        mTracker.onSent(sequence, 0);
+        acknowledge(sequence);
+        assertEquals(1, write.mRetransmissions);
+        assertEquals(1, write.mAcknowledged);
+        assertEquals(0, write.mUnacknowledged);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void refusedRetransmissionGivesUp() {
+        final FakeWrite write = new FakeWrite();
+        write.mRetransmit = false;
+        final int sequence = mTracker.allocate(write);
+        mTracker.onSent(sequence, 0);
+        mScheduler.advance(TIMEOUT_MS);
+        assertEquals(1, write.mRetransmissions);
+        assertEquals(1, write.mUnacknowledged);
+        assertEquals(0, mTracker.getOutstanding());
+    }
+
+    @Test
+    public void timeoutAllowsForEmitTimeOfEarlierWrites() {
+        final int first = mTracker.allocate(new FakeWrite());
+        final int second = mTracker.allocate(new FakeWrite());
+        mTracker.onSent(first, 3000);
+        mTracker.onSent(second, 3000);
+        // The bridge emits the second write after the first.
+        acknowledge(first);
+        final long delay = mScheduler.getNextDelayMillis();
+        assertTrue("timeout in " + delay + " ms",
+                delay > 6000 + TIMEOUT_MS - 100 && delay <= 6000 + TIMEOUT_MS);
+    }
+
+    @Test
+    public void releaseAndClearReportUnacknowledged() {
+        final FakeWrite released = new FakeWrite();
+        final FakeWrite cleared = new FakeWrite();
+        mTracker.release(mTracker.allocate(released));
+        mTracker.onSent(mTracker.allocate(cleared), 0);
+        mTracker.clear();
+        assertEquals(1, released.mUnacknowledged);
+        assertEquals(1, cleared.mUnacknowledged);
+        assertEquals(0, mTracker.getOutstanding());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
@@ -0,0 +1,325 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares delivering service events through {@link GattEventBus} with the broadcast path it
+ * replaced.  Before, every event became an Intent with its action string, a characteristic
+ * value was formatted into a text extra, and the receiver matched the action against its
+ * filter and an if/else chain.  That path is kept below as it was, with the Intent written to
+ * and read back from a byte stream in place of the Parcel it crossed the process boundary in.
+ * The binder calls to and from the activity manager are not modelled, so the broadcast
+ * figures are a lower bound.
+ *
+ * Both paths hand the events to a single thread, like the main thread the screen receives
+ * them on.  Throughput is measured with a burst of events, latency from posting an event to
+ * its callback with one event at a time.  Run with {@code ./gradlew :core:benchmark}; the
+ * plain test task skips this class.
+ */
+public class EventBusBenchmarkTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID CHARACTERISTIC = UUID.fromString(
+            SampleGattAttributes.REMOTE_CONTROL_COMMAND);
+    // One notification in a 23 byte ATT MTU.
+    private static final byte[] VALUE = new byte[20];
+
+    private static final int WARMUP_EVENTS = 20000;
+    private static final int BURST_EVENTS = 100000;
+    private static final int SEQUENTIAL_EVENTS = 5000;
+    // Every fourth event is a connection event, the others carry a value.
+    private static final int CONNECTION_EVENT_INTERVAL = 4;
+
+    // The bus must deliver at least this many times the events per second, and must not have
+    // a higher median latency.
+    private static final float MIN_SPEEDUP = 2;
+
+    private static final String ACTION_GATT_CONNECTED =
+            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
+    private static final String ACTION_GATT_DISCONNECTED =
+            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
+    private static final String ACTION_GATT_SERVICES_DISCOVERED =
+            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
+    private static final String ACTION_DATA_AVAILABLE =
+            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    private static final String EXTRA_DATA = "com.example.bluetooth.le.EXTRA_DATA";
+    private static final String[] CONNECTION_ACTIONS = {
+            ACTION_GATT_CONNECTED, ACTION_GATT_SERVICES_DISCOVERED, ACTION_GATT_DISCONNECTED
+    };
+
+    /**
+     * Posts events on one of the two paths.
+     */
+    private interface EventPath {
+        void postConnectionEvent(int event);
+
+        void postValue(byte[] value);
+    }
+
+    private static class Result {
+        final float mEventsPerSecond;
+        final long mLatencyP50Nanos;
+        final long mLatencyP99Nanos;
+
+        Result(float eventsPerSecond, long latencyP50Nanos, long latencyP99Nanos) {
+            mEventsPerSecond = eventsPerSecond;
+            mLatencyP50Nanos = latencyP50Nanos;
+            mLatencyP99Nanos = latencyP99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f events/s, latency p50 %.1f us, p99 %.1f us",
+                    mEventsPerSecond, mLatencyP50Nanos / 1e3, mLatencyP99Nanos / 1e3);
+        }
+    }
+
+    private ExecutorService mMainThread;
+    // Counts the callbacks of the running measurement down.
+    private volatile CountDownLatch mDelivered;
+    // Posting time of the event in flight, for the sequential measurement.
+    private volatile long mPostedNanos;
+    private volatile LatencyHistogram mLatency;
+    private int mConnectionEvents;
+    private int mValueBytes;
+
+    @Before
+    public void setUp() {
+        mMainThread = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mMainThread.shutdownNow();
+    }
+
+    // Runs on the main thread for every event either path delivers.
+    private void onDelivered() {
+        final LatencyHistogram latency = mLatency;
+        if (latency != null) {
+            latency.record(System.nanoTime() - mPostedNanos);
+        }
+        mDelivered.countDown();
+    }
+
+    @Test
+    public void busOutpacesBroadcasts() throws InterruptedException {
+        final Result broadcast = measure(new BroadcastPath());
+        final Result bus = measure(new BusPath());
+        System.out.println("broadcast: " + broadcast);
+        System.out.println("event bus: " + bus);
+
+        assertTrue(bus + " vs. " + broadcast,
+                bus.mEventsPerSecond >= MIN_SPEEDUP * broadcast.mEventsPerSecond);
+        assertTrue(bus + " vs. " + broadcast,
+                bus.mLatencyP50Nanos <= broadcast.mLatencyP50Nanos);
+        // Keeps the receivers' work from being optimized away.
+        assertTrue(mConnectionEvents > 0 && mValueBytes > 0);
+    }
+
+    private Result measure(EventPath path) throws InterruptedException {
+        burst(path, WARMUP_EVENTS);
+        final long startNanos = System.nanoTime();
+        burst(path, BURST_EVENTS);
+        final long burstNanos = System.nanoTime() - startNanos;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        mLatency = latency;
+        for (int i = 0; i < SEQUENTIAL_EVENTS; i++) {
+            mDelivered = new CountDownLatch(1);
+            mPostedNanos = System.nanoTime();
+            post(path, i);
+            assertTrue("event not delivered", mDelivered.await(1, TimeUnit.SECONDS));
+        }
+        mLatency = null;
+        return new Result(BURST_EVENTS * 1e9f / burstNanos, latency.getPercentileNanos(50),
+                latency.getPercentileNanos(99));
+    }
+
+    private void burst(EventPath path, int events) throws InterruptedException {
+        mDelivered = new CountDownLatch(events);
+        for (int i = 0; i < events; i++) {
+            post(path, i);
+        }
+        assertTrue("events not delivered", mDelivered.await(30, TimeUnit.SECONDS));
+    }
+
+    private static void post(EventPath path, int i) {
+        if (i % CONNECTION_EVENT_INTERVAL == 0) {
+            path.postConnectionEvent(i / CONNECTION_EVENT_INTERVAL % CONNECTION_ACTIONS.length);
+        } else {
+            path.postValue(VALUE);
+        }
+    }
+
+    private class BusPath implements EventPath {
+        private final GattEventBus mBus = new GattEventBus();
+
+        BusPath() {
+            mBus.register(new GattEventListener() {
+                @Override
+                public void onGattConnected(String address) {
+                    mConnectionEvents++;
+                    onDelivered();
+                }
+
+                @Override
+                public void onGattDisconnected(String address) {
+                    mConnectionEvents++;
+                    onDelivered();
+                }
+
+                @Override
+                public void onGattServicesDiscovered(String address) {
+                    mConnectionEvents++;
+                    onDelivered();
+                }
+            }, mMainThread);
+            mBus.subscribe(CHARACTERISTIC, new CharacteristicValueListener() {
+                @Override
+                public void onCharacteristicValue(String address, UUID characteristic,
+                                                  byte[] value) {
+                    mValueBytes += value.length;
+                    onDelivered();
+                }
+            }, mMainThread);
+        }
+
+        @Override
+        public void postConnectionEvent(int event) {
+            switch (event) {
+                case 0:
+                    mBus.postConnected(ADDRESS);
+                    break;
+                case 1:
+                    mBus.postServicesDiscovered(ADDRESS);
+                    break;
+                default:
+                    mBus.postDisconnected(ADDRESS);
+                    break;
+            }
+        }
+
+        @Override
+        public void postValue(byte[] value) {
+            mBus.postValue(ADDRESS, CHARACTERISTIC, value);
+        }
+    }
+
+    // An Intent reduced to what the service put into it.
+    private static class Intent {
+        final String mAction;
+        final Map<String, Object> mExtras = new HashMap<>();
+
+        Intent(String action) {
+            mAction = action;
+        }
+    }
+
+    private class BroadcastPath implements EventPath {
+        // The receiver's IntentFilter, which keeps its actions in a list.
+        private final List<String> mFilterActions = new ArrayList<>();
+
+        BroadcastPath() {
+            mFilterActions.add(ACTION_GATT_CONNECTED);
+            mFilterActions.add(ACTION_GATT_DISCONNECTED);
+            mFilterActions.add(ACTION_GATT_SERVICES_DISCOVERED);
+            mFilterActions.add(ACTION_DATA_AVAILABLE);
+        }
+
+        @Override
+        public void postConnectionEvent(int event) {
+            sendBroadcast(new Intent(CONNECTION_ACTIONS[event]));
+        }
+
+        // As BluetoothLeService.broadcastUpdate() formatted values for all but heart rate.
+        @Override
+        public void postValue(byte[] data) {
+            final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+            if (data != null && data.length > 0) {
+                final StringBuilder stringBuilder = new StringBuilder(data.length);
+                for(byte byteChar : data)
+                    stringBuilder.append(String.format("%02X ", byteChar));
+                intent.mExtras.put(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            }
+            sendBroadcast(intent);
+        }
+
+        private void sendBroadcast(Intent intent) {
+            final byte[] parcel = marshal(intent);
+            mMainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Intent received = unmarshal(parcel);
+                    if (mFilterActions.contains(received.mAction)) {
+                        onReceive(received);
+                    }
+                }
+            });
+        }
+
+        // As the receiver in DeviceControlActivity dispatched the actions.
+        private void onReceive(Intent intent) {
+            final String action = intent.mAction;
+            if (ACTION_GATT_CONNECTED.equals(action)) {
+                mConnectionEvents++;
+            } else if (ACTION_GATT_DISCONNECTED.equals(action)) {
+                mConnectionEvents++;
+            } else if (ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                mConnectionEvents++;
+            } else if (ACTION_DATA_AVAILABLE.equals(action)) {
+                mValueBytes += ((String) intent.mExtras.get(EXTRA_DATA)).length();
+            }
+            onDelivered();
+        }
+    }
+
+    private static byte[] marshal(Intent intent) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(intent.mAction);
+            out.writeInt(intent.mExtras.size());
+            for (Map.Entry<String, Object> extra : intent.mExtras.entrySet()) {
+                out.writeUTF(extra.getKey());
+                out.writeUTF((String) extra.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Intent unmarshal(byte[] parcel) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(parcel));
+        try {
+            final Intent intent = new Intent(in.readUTF());
+            for (int extras = in.readInt(); extras > 0; extras--) {
+                intent.mExtras.put(in.readUTF(), in.readUTF());
+            }
+            return intent;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
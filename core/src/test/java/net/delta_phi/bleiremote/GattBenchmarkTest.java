@@ -0,0 +1,89 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fails if the command path against the simulated bridge gets slower than the bounds below.
+ * The bounds leave about a third of headroom over a run on a development machine.  Run with
+ * {@code ./gradlew :core:benchmark}; the plain test task skips this class.
+ */
+public class GattBenchmarkTest {
+
+    private static final SimulatedGattPeer.Script SCRIPT =
+            new SimulatedGattPeer.Script(1, 100, 300, 185, 0.001f);
+
+    // At high connection priority the link carries about 355 key frames per second, each
+    // completing within two connection events.
+    private static final float MIN_COMMANDS_PER_SECOND = 250;
+    private static final long MAX_LATENCY_P50_MS = 20;
+    private static final long MAX_LATENCY_P99_MS = 30;
+    private static final long MAX_RECONNECT_MS = 1000;
+
+    // A write with response costs a round trip, so writes without response must carry at
+    // least this many times the key frames.
+    private static final float MIN_WRITE_NO_RESPONSE_SPEEDUP = 2;
+
+    // The bridge emits a key frame in 150 ms, so at most 6.7 frames per second complete.  One
+    // acknowledgement in ten is lost and costs a retransmission.
+    private static final float ACK_LOSS_RATE = 0.1f;
+    private static final int ACKNOWLEDGED_BURST_FRAMES = 40;
+    private static final int ACKNOWLEDGED_SEQUENTIAL_FRAMES = 20;
+    private static final float MIN_ACKNOWLEDGED_COMMANDS_PER_SECOND = 5;
+    private static final long MAX_ACKNOWLEDGED_LATENCY_P50_MS = 250;
+    private static final long MAX_ACKNOWLEDGED_RECONNECT_MS = 1500;
+
+    @Test
+    public void linkThroughputAndLatency() {
+        final GattBenchmark.Result result = new GattBenchmark().run();
+        assertNotNull("simulated bridge did not respond", result);
+        System.out.println("link: " + result);
+
+        assertTrue(result.toString(), result.mCommandsPerSecond >= MIN_COMMANDS_PER_SECOND);
+        assertTrue(result.toString(), result.mLatencyP50Nanos <= millis(MAX_LATENCY_P50_MS));
+        assertTrue(result.toString(), result.mLatencyP99Nanos <= millis(MAX_LATENCY_P99_MS));
+        assertTrue(result.toString(), result.mReconnectNanos <= millis(MAX_RECONNECT_MS));
+        assertTrue(result.toString(), result.mAcknowledgements == 0);
+    }
+
+    @Test
+    public void writeWithoutResponseOutpacesWriteWithResponse() {
+        final GattBenchmark.Result withoutResponse = new GattBenchmark().run();
+        final GattBenchmark.Result withResponse = GattBenchmark.withResponse().run();
+        assertNotNull("simulated bridge did not respond", withoutResponse);
+        assertNotNull("simulated bridge did not respond", withResponse);
+        System.out.println("without response: " + withoutResponse);
+        System.out.println("with response:    " + withResponse);
+
+        assertTrue(withoutResponse + " vs. " + withResponse, withoutResponse.mCommandsPerSecond
+                >= MIN_WRITE_NO_RESPONSE_SPEEDUP * withResponse.mCommandsPerSecond);
+        assertTrue(withoutResponse + " vs. " + withResponse,
+                withoutResponse.mLatencyP50Nanos <= withResponse.mLatencyP50Nanos);
+    }
+
+    @Test
+    public void acknowledgedFramesCompleteOnceEmitted() {
+        final GattBenchmark.Result result = new GattBenchmark(
+                SCRIPT.withAcknowledgements(ACK_LOSS_RATE), ACKNOWLEDGED_BURST_FRAMES,
+                ACKNOWLEDGED_SEQUENTIAL_FRAMES).run();
+        assertNotNull("simulated bridge did not respond", result);
+        System.out.println("acknowledged: " + result);
+
+        assertTrue(result.toString(),
+                result.mCommandsPerSecond >= MIN_ACKNOWLEDGED_COMMANDS_PER_SECOND);
+        assertTrue(result.toString(),
+                result.mLatencyP50Nanos <= millis(MAX_ACKNOWLEDGED_LATENCY_P50_MS));
+        assertTrue(result.toString(),
+                result.mReconnectNanos <= millis(MAX_ACKNOWLEDGED_RECONNECT_MS));
+        // Every frame went through the acknowledged form, and lost acknowledgements were made
+        // up for by retransmissions.
+        assertTrue(result.toString(), result.mAcknowledgements > 0);
+        assertTrue(result.toString(), result.mRetransmissions > 0);
+    }
+
+    private static long millis(long millis) {
+        return millis * 1000000;
+    }
+}
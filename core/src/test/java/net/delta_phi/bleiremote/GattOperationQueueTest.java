@@ -0,0 +1,350 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+
+    private static final long TIMEOUT_MS = 1000;
+    private static final int MAX_CREDITS = 4;
+    private static final int MAX_PENDING = 3;
+    private static final int NOT_COMPLETED = Integer.MIN_VALUE;
+
+    private ManualScheduler mScheduler;
+    private GattOperationQueue mQueue;
+    // Names of the operations in the order they were issued, retries included.
+    private final List<String> mIssued = new ArrayList<>();
+
+    private class FakeOperation extends GattOperationQueue.Operation {
+        final String mName;
+        boolean mExpectsResponse = true;
+        boolean mDroppable;
+        int mLane = GattOperationQueue.LANE_INTERACTIVE;
+        // Step operations with the same name merge; the count is the number of steps.
+        boolean mStep;
+        int mSteps = 1;
+        int mRejections;
+        int mStatus = NOT_COMPLETED;
+
+        FakeOperation(String name) {
+            mName = name;
+        }
+
+        FakeOperation withoutResponse() {
+            mExpectsResponse = false;
+            return this;
+        }
+
+        FakeOperation droppable() {
+            mDroppable = true;
+            return this;
+        }
+
+        FakeOperation inLane(int lane) {
+            mLane = lane;
+            return this;
+        }
+
+        FakeOperation step() {
+            mStep = true;
+            return this;
+        }
+
+        FakeOperation rejectedTimes(int rejections) {
+            mRejections = rejections;
+            return this;
+        }
+
+        @Override
+        boolean execute() {
+            mIssued.add(mName);
+            if (mRejections > 0) {
+                mRejections--;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean expectsResponse() {
+            return mExpectsResponse;
+        }
+
+        @Override
+        void onComplete(int status) {
+            assertEquals("completed twice", NOT_COMPLETED, mStatus);
+            mStatus = status;
+        }
+
+        @Override
+        boolean coalesce(GattOperationQueue.Operation next) {
+            if (!mStep || !(next instanceof FakeOperation)) {
+                return false;
+            }
+            final FakeOperation other = (FakeOperation) next;
+            if (!other.mStep || !other.mName.equals(mName)) {
+                return false;
+            }
+            mSteps += other.mSteps;
+            return true;
+        }
+
+        @Override
+        boolean isDroppable() {
+            return mDroppable;
+        }
+
+        @Override
+        int getLane() {
+            return mLane;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mQueue = new GattOperationQueue(mScheduler, TIMEOUT_MS, MAX_CREDITS, MAX_PENDING);
+    }
+
+    private void assertIssued(String... names) {
+        assertEquals(Arrays.asList(names), mIssued);
+    }
+
+    @Test
+    public void holdsOperationsUntilReady() {
+        final FakeOperation read = new FakeOperation("read");
+        mQueue.enqueue(read);
+        assertIssued();
+        mQueue.setReady(true);
+        assertIssued("read");
+    }
+
+    @Test
+    public void issuesOneOperationWithResponseAtATime() {
+        mQueue.setReady(true);
+        final FakeOperation first = new FakeOperation("first");
+        final FakeOperation second = new FakeOperation("second");
+        mQueue.enqueue(first);
+        mQueue.enqueue(second);
+        assertIssued("first");
+        assertEquals(2, mQueue.getDepth());
+
+        mQueue.onOperationComplete(0);
+        assertEquals(0, first.mStatus);
+        assertIssued("first", "second");
+
+        mQueue.onOperationComplete(0);
+        assertEquals(0, second.mStatus);
+        assertEquals(0, mQueue.getDepth());
+    }
+
+    @Test
+    public void timesOutLostCallbackAndMovesOn() {
+        mQueue.setReady(true);
+        final FakeOperation lost = new FakeOperation("lost");
+        final FakeOperation next = new FakeOperation("next");
+        mQueue.enqueue(lost);
+        mQueue.enqueue(next);
+
+        mScheduler.advance(TIMEOUT_MS - 1);
+        assertEquals(NOT_COMPLETED, lost.mStatus);
+        mScheduler.advance(1);
+        assertEquals(GattOperationQueue.STATUS_TIMEOUT, lost.mStatus);
+        assertIssued("lost", "next");
+
+        // The timeout of a completed operation is cancelled.
+        mQueue.onOperationComplete(0);
+        assertEquals(0, next.mStatus);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void writesWithoutResponseUseCredits() {
+        mQueue.setReady(true);
+        final List<FakeOperation> writes = new ArrayList<>();
+        for (int i = 0; i < MAX_CREDITS + 2; i++) {
+            final FakeOperation write = new FakeOperation("w" + i).withoutResponse();
+            writes.add(write);
+            mQueue.enqueue(write);
+        }
+        assertIssued("w0", "w1", "w2", "w3");
+
+        mQueue.onOperationComplete(0);
+        assertEquals(0, writes.get(0).mStatus);
+        assertIssued("w0", "w1", "w2", "w3", "w4");
+    }
+
+    @Test
+    public void operationWithResponseWaitsForCreditsToReturn() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("w0").withoutResponse());
+        mQueue.enqueue(new FakeOperation("w1").withoutResponse());
+        mQueue.enqueue(new FakeOperation("read"));
+        mQueue.enqueue(new FakeOperation("w2").withoutResponse());
+        assertIssued("w0", "w1");
+
+        mQueue.onOperationComplete(0);
+        assertIssued("w0", "w1");
+        mQueue.onOperationComplete(0);
+        assertIssued("w0", "w1", "read");
+        mQueue.onOperationComplete(0);
+        assertIssued("w0", "w1", "read", "w2");
+    }
+
+    @Test
+    public void rejectedWriteRetriesAtHeadWhileOthersAreInFlight() {
+        mQueue.setReady(true);
+        final FakeOperation w0 = new FakeOperation("w0").withoutResponse();
+        // The stack stays full until w0 completes.
+        final FakeOperation w1 = new FakeOperation("w1").withoutResponse().rejectedTimes(2);
+        final FakeOperation w2 = new FakeOperation("w2").withoutResponse();
+        mQueue.enqueue(w0);
+        mQueue.enqueue(w1);
+        mQueue.enqueue(w2);
+        // w1 is retried first, so w2 is not tried behind its back.
+        assertIssued("w0", "w1", "w1");
+        assertEquals(NOT_COMPLETED, w1.mStatus);
+
+        mQueue.onOperationComplete(0);
+        assertEquals(0, w0.mStatus);
+        assertIssued("w0", "w1", "w1", "w1", "w2");
+        mQueue.onOperationComplete(0);
+        mQueue.onOperationComplete(0);
+        assertEquals(0, w1.mStatus);
+        assertEquals(0, w2.mStatus);
+    }
+
+    @Test
+    public void rejectedOperationFailsWhenNothingIsInFlight() {
+        mQueue.setReady(true);
+        final FakeOperation rejected = new FakeOperation("rejected").rejectedTimes(1);
+        final FakeOperation next = new FakeOperation("next");
+        mQueue.enqueue(rejected);
+        mQueue.enqueue(next);
+        assertEquals(GattOperationQueue.STATUS_REJECTED, rejected.mStatus);
+        assertIssued("rejected", "next");
+    }
+
+    @Test
+    public void closingCancelsEverything() {
+        mQueue.setReady(true);
+        final FakeOperation inFlight = new FakeOperation("inFlight");
+        final FakeOperation pending = new FakeOperation("pending");
+        mQueue.enqueue(inFlight);
+        mQueue.enqueue(pending);
+        mQueue.setReady(false);
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, inFlight.mStatus);
+        assertEquals(GattOperationQueue.STATUS_CANCELLED, pending.mStatus);
+        assertEquals(0, mQueue.getDepth());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void fullQueueDropsOldestDroppable() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("busy"));
+        final FakeOperation macro = new FakeOperation("macro");
+        final FakeOperation key1 = new FakeOperation("key1").droppable();
+        final FakeOperation key2 = new FakeOperation("key2").droppable();
+        final FakeOperation key3 = new FakeOperation("key3").droppable();
+        final FakeOperation key4 = new FakeOperation("key4").droppable();
+        mQueue.enqueue(macro);
+        mQueue.enqueue(key1);
+        mQueue.enqueue(key2);
+        mQueue.enqueue(key3);
+        assertEquals(GattOperationQueue.STATUS_DROPPED, key1.mStatus);
+        mQueue.enqueue(key4);
+        assertEquals(GattOperationQueue.STATUS_DROPPED, key2.mStatus);
+        assertEquals(NOT_COMPLETED, macro.mStatus);
+
+        // Operations that may not be dropped are queued beyond the limit.
+        final FakeOperation config = new FakeOperation("config");
+        mQueue.enqueue(config);
+        assertEquals(GattOperationQueue.STATUS_DROPPED, key3.mStatus);
+        mQueue.enqueue(new FakeOperation("descriptor"));
+        assertEquals(GattOperationQueue.STATUS_DROPPED, key4.mStatus);
+        mQueue.enqueue(new FakeOperation("read"));
+        assertEquals(1 + 4, mQueue.getDepth());
+    }
+
+    @Test
+    public void fullQueueDropsFromLeastUrgentLaneFirst() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("busy"));
+        final FakeOperation key = new FakeOperation("key").droppable();
+        final FakeOperation tail = new FakeOperation("tail").droppable()
+                .inLane(GattOperationQueue.LANE_BACKGROUND);
+        mQueue.enqueue(key);
+        mQueue.enqueue(tail);
+        mQueue.enqueue(new FakeOperation("other").droppable());
+        mQueue.enqueue(new FakeOperation("power").inLane(GattOperationQueue.LANE_URGENT));
+        assertEquals(GattOperationQueue.STATUS_DROPPED, tail.mStatus);
+        assertEquals(NOT_COMPLETED, key.mStatus);
+    }
+
+    @Test
+    public void urgentLaneOvertakesQueuedTraffic() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("busy"));
+        mQueue.enqueue(new FakeOperation("macro").inLane(GattOperationQueue.LANE_BACKGROUND));
+        mQueue.enqueue(new FakeOperation("volume"));
+        mQueue.enqueue(new FakeOperation("power").inLane(GattOperationQueue.LANE_URGENT));
+        for (int i = 0; i < 4; i++) {
+            mQueue.onOperationComplete(0);
+        }
+        assertIssued("busy", "power", "volume", "macro");
+    }
+
+    @Test
+    public void inFlightOperationIsNotPreempted() {
+        mQueue.setReady(true);
+        final FakeOperation macro = new FakeOperation("macro")
+                .inLane(GattOperationQueue.LANE_BACKGROUND);
+        mQueue.enqueue(macro);
+        mQueue.enqueue(new FakeOperation("power").inLane(GattOperationQueue.LANE_URGENT));
+        assertIssued("macro");
+        mQueue.onOperationComplete(0);
+        assertEquals(0, macro.mStatus);
+        assertIssued("macro", "power");
+    }
+
+    @Test
+    public void neighbouringStepsMerge() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("busy"));
+        final FakeOperation up = new FakeOperation("up").step();
+        mQueue.enqueue(up);
+        mQueue.enqueue(new FakeOperation("up").step());
+        mQueue.enqueue(new FakeOperation("up").step());
+        assertEquals(3, up.mSteps);
+        assertEquals(2, mQueue.getDepth());
+        assertTrue(mQueue.toString().contains("coalesced=2"));
+
+        // A different command in between keeps the order.
+        mQueue.enqueue(new FakeOperation("cd1"));
+        final FakeOperation laterUp = new FakeOperation("up").step();
+        mQueue.enqueue(laterUp);
+        assertEquals(3, up.mSteps);
+        assertEquals(4, mQueue.getDepth());
+    }
+
+    @Test
+    public void stepsMergeOnlyWithinTheirLane() {
+        mQueue.setReady(true);
+        mQueue.enqueue(new FakeOperation("busy"));
+        final FakeOperation up = new FakeOperation("up").step();
+        mQueue.enqueue(up);
+        mQueue.enqueue(new FakeOperation("power").inLane(GattOperationQueue.LANE_URGENT));
+        mQueue.enqueue(new FakeOperation("up").step());
+        // The power press waits in another lane, so the steps are still neighbours.
+        assertEquals(2, up.mSteps);
+        assertEquals(3, mQueue.getDepth());
+    }
+}
@@ -0,0 +1,111 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IrEncoderTest {
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void encodesLittleEndianAddressAndCommand() {
+        assertArrayEquals(bytes(0x2f, 0x00, 0x00, 0x09, 0x04, 0x00),
+                IrEncoder.TECHNICS.encode(0x0000, 0x0409, 0x00));
+        assertArrayEquals(bytes(0x02, 0x04, 0xfb, 0x08, 0x00, 0x03),
+                IrEncoder.NEC.encode(0xfb04, 0x08, 0x03));
+        assertArrayEquals(bytes(0x05, 0x02, 0x20, 0x3d, 0x01, 0x00),
+                IrEncoder.KASEIKYO.encode(0x2002, 0x013d, 0x00));
+    }
+
+    @Test
+    public void encodesIntoBufferAtOffset() {
+        final byte[] buffer = new byte[2 + IrEncoder.FRAME_LENGTH + 1];
+        IrEncoder.RC5.encode(0x05, 0x0c, 0x01, buffer, 2);
+        assertArrayEquals(bytes(0x00, 0x00, 0x07, 0x05, 0x00, 0x0c, 0x00, 0x01, 0x00), buffer);
+    }
+
+    @Test
+    public void rejectsValuesWiderThanTheProtocol() {
+        try {
+            IrEncoder.TECHNICS.encode(0x0001, 0x0409, 0x00);
+            fail("Technics has no address");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            IrEncoder.TECHNICS.encode(0x0000, 0x0800, 0x00);
+            fail("Technics commands have 11 bits");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            IrEncoder.SIRCS.encode(0x20, 0x01, 0x00);
+            fail("SIRCS addresses have 5 bits");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void findsEncoderByProtocolNumber() {
+        assertSame(IrEncoder.TECHNICS, IrEncoder.forProtocol(47));
+        assertSame(IrEncoder.NEC, IrEncoder.forProtocol(2));
+        assertNull(IrEncoder.forProtocol(0));
+    }
+
+    @Test
+    public void comparesCommandsIgnoringRepetitions() {
+        final byte[] volumeUp = bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x00);
+        assertTrue(IrEncoder.isSameCommand(volumeUp, bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x05)));
+        assertFalse(IrEncoder.isSameCommand(volumeUp, bytes(0x2f, 0x00, 0x00, 0xa9, 0x04, 0x00)));
+        assertFalse(IrEncoder.isSameCommand(volumeUp, bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x10)));
+        assertFalse(IrEncoder.isSameCommand(volumeUp, new byte[2 * IrEncoder.FRAME_LENGTH]));
+    }
+
+    @Test
+    public void mergeAddsUpRepetitions() {
+        final byte[] first = bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x00);
+        final byte[] second = bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x02);
+        // One frame plus three frames is one frame repeated three times.
+        assertArrayEquals(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x03),
+                IrEncoder.mergeRepetitions(first, second));
+        assertEquals(0x00, first[5]);
+        assertEquals(0x02, second[5]);
+    }
+
+    @Test
+    public void mergeKeepsOtherFlags() {
+        assertArrayEquals(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x41),
+                IrEncoder.mergeRepetitions(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x40),
+                        bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x40)));
+    }
+
+    @Test
+    public void mergeRefusesOtherCommandsAndOverflow() {
+        assertNull(IrEncoder.mergeRepetitions(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x00),
+                bytes(0x2f, 0x00, 0x00, 0xa9, 0x04, 0x00)));
+        assertNull(IrEncoder.mergeRepetitions(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x08),
+                bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x07)));
+        assertArrayEquals(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x0f),
+                IrEncoder.mergeRepetitions(bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x07),
+                        bytes(0x2f, 0x00, 0x00, 0x89, 0x04, 0x07)));
+    }
+
+    @Test
+    public void describesKnownFrames() {
+        assertEquals("Technics address 0x0000 command 0x0409 flags 0x00",
+                IrEncoder.describe(bytes(0x2f, 0x00, 0x00, 0x09, 0x04, 0x00)));
+        assertNull(IrEncoder.describe(bytes(0x00, 0x64, 0x00, 0x00, 0x00, 0x00)));
+        assertNull(IrEncoder.describe(new byte[3]));
+    }
+}
@@ -0,0 +1,86 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends the macros of {@code res/raw/macros.json} and a long one to the simulated bridge at
+ * the smallest MTU and at the MTU the app asks for, and checks that each goes out in as few
+ * writes as packing promises, within a bound on the time until its last write completed.  Run
+ * with {@code ./gradlew :core:benchmark}; the plain test task skips this class.
+ */
+public class MacroBenchmarkTest {
+
+    private static final int ATT_WRITE_HEADER_LENGTH = 3;
+    private static final int MIN_MTU = 23;
+    private static final int PREFERRED_MTU = 185;
+    private static final int DEFAULT_DELAY_MS = 250;
+
+    // A write completes within two connection events at high priority; the rest is headroom.
+    private static final long MAX_MILLIS_PER_WRITE = 30;
+
+    // The Technics codes of the keys the macros use.
+    private static final byte[] ONOFF = technics(0x0409);
+    private static final byte[] FM_1 = technics(0x0209);
+    private static final byte[] CD_PLAY = technics(0x014C);
+    private static final byte[] CD_3 = technics(0x024C);
+    private static final byte[] CD_5 = technics(0x028C);
+    private static final byte[] CD_PLUS_TEN = technics(0x034C);
+
+    private static final Macro[] MACROS = {
+            new Macro("CD track 15", new byte[][] {CD_PLUS_TEN, CD_5},
+                    new int[] {DEFAULT_DELAY_MS, DEFAULT_DELAY_MS}),
+            new Macro("CD track 23", new byte[][] {CD_PLUS_TEN, CD_PLUS_TEN, CD_3},
+                    new int[] {DEFAULT_DELAY_MS, DEFAULT_DELAY_MS, DEFAULT_DELAY_MS}),
+            new Macro("Power on, CD play", new byte[][] {ONOFF, CD_PLAY},
+                    new int[] {DEFAULT_DELAY_MS, 2000}),
+            new Macro("Power on, radio preset 1", new byte[][] {ONOFF, FM_1},
+                    new int[] {DEFAULT_DELAY_MS, 2000}),
+            longMacro(),
+    };
+
+    private static byte[] technics(int command) {
+        return IrEncoder.TECHNICS.encode(0x0000, command, 0x00);
+    }
+
+    // Skips to track 95 without pauses, so the records fill several writes at any MTU.
+    private static Macro longMacro() {
+        final byte[][] frames = new byte[41][];
+        for (int i = 0; i < 40; i++) {
+            frames[i] = CD_PLUS_TEN;
+        }
+        frames[40] = CD_5;
+        return new Macro("CD track 95", frames, new int[frames.length]);
+    }
+
+    @Test
+    public void macrosAtSmallestMtu() {
+        check(MIN_MTU);
+    }
+
+    @Test
+    public void macrosAtPreferredMtu() {
+        check(PREFERRED_MTU);
+    }
+
+    private static void check(int mtu) {
+        final List<GattBenchmark.MacroResult> results = new GattBenchmark(
+                new SimulatedGattPeer.Script(1, 100, 300, mtu, 0), 0, 0).runMacros(MACROS);
+        assertNotNull("simulated bridge did not respond", results);
+        for (int i = 0; i < MACROS.length; i++) {
+            final GattBenchmark.MacroResult result = results.get(i);
+            System.out.println("macro: " + result);
+            assertEquals(result.toString(), mtu, result.mMtu);
+            assertEquals(result.toString(), MACROS[i].pack(
+                    mtu - ATT_WRITE_HEADER_LENGTH - AckTracker.SEQUENCE_LENGTH).size(),
+                    result.mWrites);
+            assertTrue(result.toString(),
+                    result.mWallNanos <= result.mWrites * MAX_MILLIS_PER_WRITE * 1000000);
+        }
+    }
+}
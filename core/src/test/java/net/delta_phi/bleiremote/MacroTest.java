@@ -0,0 +1,153 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MacroTest {
+
+    // What BridgeConnection leaves of the MTU for a macro payload.
+    private static final int ATT_WRITE_HEADER_LENGTH = 3;
+    private static final int[] MTUS = {23, 27, 28, 33, 185, 247, 517};
+
+    private static final byte[] DIGIT_1 = IrEncoder.TECHNICS.encode(0x0000, 0x0419, 0x00);
+    private static final byte[] DIGIT_2 = IrEncoder.TECHNICS.encode(0x0000, 0x041a, 0x00);
+    private static final byte[] PLAY = IrEncoder.TECHNICS.encode(0x0000, 0x0110, 0x00);
+    private static final byte[] VOLUME_UP = IrEncoder.TECHNICS.encode(0x0000, 0x0400, 0x03);
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] delay(int millis) {
+        return bytes(0x00, millis & 0xff, millis >> 8, 0x00, 0x00, 0x00);
+    }
+
+    private static byte[] concat(byte[]... records) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            out.write(record, 0, record.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(List<byte[]> payloads) {
+        return concat(payloads.toArray(new byte[payloads.size()][]));
+    }
+
+    private static int room(int mtu) {
+        return mtu - ATT_WRITE_HEADER_LENGTH - AckTracker.SEQUENCE_LENGTH;
+    }
+
+    // A macro of count frames, with a pause before every frame but the first one.
+    private static Macro macro(int count, int delayMillis) {
+        final byte[][] frames = new byte[count][];
+        final int[] delays = new int[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = i % 2 == 0 ? DIGIT_1 : DIGIT_2;
+            delays[i] = i > 0 ? delayMillis : 0;
+        }
+        return new Macro("test", frames, delays);
+    }
+
+    @Test
+    public void packsFramesAndDelaysInOrder() {
+        final Macro macro = new Macro("track 12",
+                new byte[][] {DIGIT_1, DIGIT_2, PLAY}, new int[] {500, 300, 0});
+        final List<byte[]> payloads = macro.pack(room(185));
+        assertEquals(1, payloads.size());
+        // The pause before the first frame is dropped.
+        assertArrayEquals(concat(DIGIT_1, delay(300), DIGIT_2, PLAY), payloads.get(0));
+    }
+
+    @Test
+    public void clampsLongDelays() {
+        final Macro macro = new Macro("long", new byte[][] {DIGIT_1, DIGIT_2},
+                new int[] {0, 100000});
+        assertArrayEquals(concat(DIGIT_1, delay(0xffff), DIGIT_2), macro.pack(room(185)).get(0));
+    }
+
+    @Test
+    public void payloadsFitEveryMtu() {
+        final Macro macro = macro(25, 200);
+        final byte[] records = concat(macro.pack(Integer.MAX_VALUE));
+        assertEquals(49 * Macro.RECORD_LENGTH, records.length);
+        for (int mtu : MTUS) {
+            final int room = room(mtu);
+            final int recordsPerPayload = room / Macro.RECORD_LENGTH;
+            final List<byte[]> payloads = macro.pack(room);
+            assertEquals("MTU " + mtu, (49 + recordsPerPayload - 1) / recordsPerPayload,
+                    payloads.size());
+            for (byte[] payload : payloads) {
+                assertTrue("MTU " + mtu, payload.length <= room);
+                assertEquals("MTU " + mtu, 0, payload.length % Macro.RECORD_LENGTH);
+            }
+            // Only the last payload may be short.
+            for (int i = 0; i < payloads.size() - 1; i++) {
+                assertEquals("MTU " + mtu, recordsPerPayload * Macro.RECORD_LENGTH,
+                        payloads.get(i).length);
+            }
+            assertArrayEquals("MTU " + mtu, records, concat(payloads));
+        }
+    }
+
+    @Test
+    public void sequenceNumberCostsARecordWhenTheMtuFitsExactly() {
+        // At MTU 27, four records fill the 24 bytes of a write, and the sequence number byte
+        // pushes the fourth into the next write.
+        final Macro macro = macro(4, 0);
+        assertEquals(1, macro.pack(27 - ATT_WRITE_HEADER_LENGTH).size());
+        final List<byte[]> payloads = macro.pack(room(27));
+        assertEquals(2, payloads.size());
+        assertEquals(3 * Macro.RECORD_LENGTH, payloads.get(0).length);
+        assertEquals(Macro.RECORD_LENGTH, payloads.get(1).length);
+    }
+
+    @Test
+    public void stepFillingAWriteExactlyLeavesNoEmptyWrite() {
+        final int payloadLength = 4 * Macro.RECORD_LENGTH;
+        final Macro macro = new Macro("volume",
+                new byte[][] {VOLUME_UP, VOLUME_UP, VOLUME_UP, VOLUME_UP}, new int[4]);
+        final List<byte[]> payloads = macro.pack(payloadLength);
+        assertEquals(1, payloads.size());
+        assertArrayEquals(concat(VOLUME_UP, VOLUME_UP, VOLUME_UP, VOLUME_UP), payloads.get(0));
+
+        assertEquals(2, macro(8, 0).pack(payloadLength).size());
+    }
+
+    @Test
+    public void delayRecordAtTheEndOfAWriteStaysAheadOfItsFrame() {
+        // Records: DIGIT_1, delay, DIGIT_2, delay | DIGIT_1, delay, DIGIT_2
+        final Macro macro = macro(4, 250);
+        final List<byte[]> payloads = macro.pack(4 * Macro.RECORD_LENGTH);
+        assertEquals(2, payloads.size());
+        assertArrayEquals(concat(DIGIT_1, delay(250), DIGIT_2, delay(250)), payloads.get(0));
+        assertArrayEquals(concat(DIGIT_1, delay(250), DIGIT_2), payloads.get(1));
+        assertEquals(2 * 150 + 2 * 250, Macro.getPlaybackMillis(payloads.get(0)));
+        assertEquals(2 * 150 + 250, Macro.getPlaybackMillis(payloads.get(1)));
+    }
+
+    @Test
+    public void writesTooShortForARecordCarryOneEach() {
+        final List<byte[]> payloads = macro(3, 0).pack(Macro.RECORD_LENGTH - 1);
+        assertEquals(3, payloads.size());
+        assertArrayEquals(DIGIT_2, payloads.get(1));
+    }
+
+    @Test
+    public void playbackCountsRepetitions() {
+        // Three repetitions after the first frame.
+        assertEquals(4 * 150, Macro.getPlaybackMillis(VOLUME_UP));
+        // A trailing sequence number is not a record.
+        assertEquals(150, Macro.getPlaybackMillis(concat(PLAY, bytes(0x42))));
+    }
+}
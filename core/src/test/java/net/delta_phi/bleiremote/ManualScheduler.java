@@ -0,0 +1,131 @@
+package net.delta_phi.bleiremote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler for tests that runs delayed tasks only when asked to.  Tasks submitted for
+ * immediate execution run on the caller's thread.
+ */
+class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private long mNowNanos;
+
+    ManualScheduler() {
+        super(1);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        final Task task = new Task(command, mNowNanos + unit.toNanos(delay));
+        mTasks.add(task);
+        return task;
+    }
+
+    /**
+     * Advances the clock and runs the tasks that became due, in the order of their due times.
+     */
+    void advance(long millis) {
+        final long until = mNowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (true) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (task.mDueNanos <= until && (next == null || task.mDueNanos < next.mDueNanos)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mTasks.remove(next);
+            mNowNanos = Math.max(mNowNanos, next.mDueNanos);
+            next.mDone = true;
+            next.mCommand.run();
+        }
+        mNowNanos = until;
+    }
+
+    /**
+     * @return The number of tasks that are scheduled and not cancelled.
+     */
+    int getPendingCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * @return The delay of the earliest scheduled task, or -1 if there is none.
+     */
+    long getNextDelayMillis() {
+        long next = -1;
+        for (Task task : mTasks) {
+            final long delay = TimeUnit.NANOSECONDS.toMillis(task.mDueNanos - mNowNanos);
+            if (next < 0 || delay < next) {
+                next = delay;
+            }
+        }
+        return next;
+    }
+
+    private class Task implements ScheduledFuture<Object> {
+        private final Runnable mCommand;
+        private final long mDueNanos;
+        private boolean mCancelled;
+        private boolean mDone;
+
+        Task(Runnable command, long dueNanos) {
+            mCommand = command;
+            mDueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueNanos - mNowNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+                    other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mDone || mCancelled) {
+                return false;
+            }
+            mCancelled = true;
+            mTasks.remove(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone || mCancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+}
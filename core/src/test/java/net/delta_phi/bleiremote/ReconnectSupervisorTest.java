@@ -0,0 +1,98 @@
+package net.delta_phi.bleiremote;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectSupervisorTest {
+
+    private static final long INITIAL_DELAY_MS = 100;
+    private static final long MAX_DELAY_MS = 1600;
+    private static final long ATTEMPT_TIMEOUT_MS = 1000;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ManualScheduler mScheduler;
+    private ReconnectSupervisor mSupervisor;
+    private int mAttempts;
+    private int mBackgroundAttempts;
+    private boolean mStartAttempts = true;
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mSupervisor = new ReconnectSupervisor(mScheduler, new ReconnectSupervisor.Reconnector() {
+            @Override
+            public boolean reconnect(boolean background) {
+                if (background) {
+                    mBackgroundAttempts++;
+                } else {
+                    mAttempts++;
+                }
+                return mStartAttempts;
+            }
+
+            @Override
+            public void cancelReconnect() {
+            }
+        }, INITIAL_DELAY_MS, MAX_DELAY_MS, ATTEMPT_TIMEOUT_MS, MAX_ATTEMPTS);
+        mSupervisor.onConnected();
+    }
+
+    // Lets every foreground attempt time out.
+    private void useUpAttempts() {
+        mSupervisor.onConnectionLost();
+        mScheduler.advance(MAX_ATTEMPTS * (MAX_DELAY_MS + ATTEMPT_TIMEOUT_MS));
+        assertEquals(MAX_ATTEMPTS, mAttempts);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        useUpAttempts();
+        assertEquals(0, mBackgroundAttempts);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void failedBackgroundAttemptWaitsForMaxBackoff() {
+        mSupervisor.setBackgroundModeEnabled(true);
+        useUpAttempts();
+        assertEquals(1, mBackgroundAttempts);
+
+        // The stack reports the pending attempt as failed right away.
+        for (int i = 0; i < 5; i++) {
+            mSupervisor.onConnectionLost();
+            final long delay = mScheduler.getNextDelayMillis();
+            assertTrue("re-armed after " + delay + " ms",
+                    delay >= MAX_DELAY_MS / 2 && delay <= MAX_DELAY_MS);
+            mScheduler.advance(MAX_DELAY_MS);
+        }
+        assertEquals(6, mBackgroundAttempts);
+        assertEquals(MAX_ATTEMPTS, mAttempts);
+    }
+
+    @Test
+    public void backgroundAttemptThatCannotStartBacksOff() {
+        mSupervisor.setBackgroundModeEnabled(true);
+        useUpAttempts();
+        mStartAttempts = false;
+
+        mSupervisor.onConnectionLost();
+        mScheduler.advance(MAX_DELAY_MS);
+        assertEquals(2, mBackgroundAttempts);
+        assertEquals(1, mScheduler.getPendingCount());
+
+        // At least half the maximum backoff between attempts.
+        mScheduler.advance(10 * MAX_DELAY_MS);
+        assertTrue("attempts " + mBackgroundAttempts, mBackgroundAttempts <= 2 + 20);
+    }
+
+    @Test
+    public void connectingEndsBackgroundAttempts() {
+        mSupervisor.setBackgroundModeEnabled(true);
+        useUpAttempts();
+        assertTrue(mSupervisor.onConnected());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}